@@ -3,10 +3,11 @@ package pt.tecnico.bank.app;
 import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
 import pt.tecnico.bank.Crypto;
+import pt.tecnico.bank.Payloads;
 import pt.tecnico.bank.grpc.*;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -16,12 +17,15 @@ public class App {
     Crypto crypto;
     int balance;
     int rid;
+    // how much of each audited account's history was already fetched with auditNew
+    HashMap<PublicKey, Integer> auditCursors;
 
     public App(ServerFrontend frontend, Crypto crypto) {
         this.frontend = frontend;
         this.crypto = crypto;
         this.balance = 500;
         this.rid = 0;
+        this.auditCursors = new HashMap<>();
     }
 
     // App methods that send requests to the ServerServiceImpl and returns responses to the user
@@ -38,7 +42,10 @@ public class App {
 
     public void getRid(PublicKey pubKey) {
 
-        RidResponse response = frontend.rid(RidRequest.newBuilder().setPublicKey(ByteString.copyFrom(pubKey.getEncoded())).build());
+        RidResponse response = frontend.rid(RidRequest.newBuilder()
+                .setPublicKey(ByteString.copyFrom(pubKey.getEncoded()))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
+                .build());
 
         if (response == null) {
             System.out.println("No quorum achieved when getting rid value!");
@@ -55,8 +62,8 @@ public class App {
         String pairSignatureString = String.valueOf(this.balance) + 0;
         byte [] pairSignature = crypto.getSignature(pairSignatureString, privateKey);
 
-        String finalString1 = publicKey.toString() + username + 0 + this.balance + Arrays.toString(pairSignature);
-        byte[] signature = crypto.getSignature(finalString1, privateKey);
+        byte[] signature = crypto.getSignature(Payloads.openAccountRequest(publicKey, username, 0, this.balance, pairSignature),
+                privateKey, Crypto.SIGNATURE_VERSION);
 
         OpenAccountRequest request = OpenAccountRequest.newBuilder()
                 .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
@@ -65,6 +72,7 @@ public class App {
                 .setBalance(this.balance)
                 .setPairSign(ByteString.copyFrom(pairSignature))
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                 .build();
 
         OpenAccountResponse response = frontend.openAccount(request);
@@ -87,8 +95,8 @@ public class App {
 
         int new_rid = this.rid + 1;
 
-        String finalString = publicKey.toString() + keyPair.getPublic().toString() + new_rid + nonce;
-        byte [] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        byte [] signature = crypto.getSignature(Payloads.checkAccountRequest(publicKey, keyPair.getPublic(), new_rid, nonce),
+                keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
 
         CheckAccountRequest request = CheckAccountRequest.newBuilder()
                 .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
@@ -96,6 +104,7 @@ public class App {
                 .setRid(this.rid + 1)
                 .setNonce(nonce)
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                 .build();
 
         CheckAccountResponse response = frontend.checkAccount(request);
@@ -126,10 +135,8 @@ public class App {
                 byte[] pairSign = response.getPairSign().toByteArray();
                 PublicKey publicKey1 = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
 
-                String writeBackString = String.valueOf(response.getBalance()) + pending + response.getWid() + Arrays.toString(pairSign)
-                        + publicKey1.toString() + keyPair.getPublic().toString();
-
-                byte[] writeBackSignature = crypto.getSignature(writeBackString, keyPair.getPrivate());
+                byte[] writeBackSignature = crypto.getSignature(Payloads.checkWriteBackRequest(response.getBalance(), pending,
+                        response.getWid(), pairSign, publicKey1, keyPair.getPublic()), keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
 
                 CheckWriteBackRequest request1 = CheckWriteBackRequest.newBuilder()
                         .addAllTransactions(pending)
@@ -139,6 +146,7 @@ public class App {
                         .setPublicKey(ByteString.copyFrom(publicKey1.getEncoded()))
                         .setMyPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                         .setSignature(ByteString.copyFrom(writeBackSignature))
+                        .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                         .build();
 
                 frontend.checkWriteBack(request1);
@@ -162,8 +170,8 @@ public class App {
 
         int new_rid = this.rid + 1;
 
-        String finalString1 = senderPubK.toString() + senderPubK.toString() + new_rid + nonce;
-        byte [] signature1 = crypto.getSignature(finalString1, senderPrivK);
+        byte [] signature1 = crypto.getSignature(Payloads.checkAccountRequest(senderPubK, senderPubK, new_rid, nonce),
+                senderPrivK, Crypto.SIGNATURE_VERSION);
 
         CheckAccountResponse response1 = frontend.checkAccount(CheckAccountRequest.newBuilder()
                 .setPublicKey(ByteString.copyFrom(senderPubK.getEncoded()))
@@ -171,6 +179,7 @@ public class App {
                 .setRid(this.rid + 1)
                 .setNonce(nonce)
                 .setSignature(ByteString.copyFrom(signature1))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                 .build());
 
         if (response1 == null) {
@@ -199,17 +208,15 @@ public class App {
             String pairSignatureString = String.valueOf(new_balance) + new_wid;
             byte[] pairSignature = crypto.getSignature(pairSignatureString, senderPrivK);
 
-            String finalString = sourceUsername + destUsername + amount
-                    + senderPubK + receiverPubK + Arrays.toString(signatureTrans)
-                    + new_wid + Arrays.toString(pairSignature) + new_balance;
-
-            byte[] signature = crypto.getSignature(finalString, senderPrivK);
+            byte[] signature = crypto.getSignature(Payloads.sendAmountRequest(transaction, senderPubK, receiverPubK, pairSignature, new_balance),
+                    senderPrivK, Crypto.SIGNATURE_VERSION);
 
             SendAmountRequest request = SendAmountRequest.newBuilder()
                     .setTransaction(transaction)
                     .setNewBalance(new_balance)
                     .setPairSign(ByteString.copyFrom(pairSignature))
                     .setSignature(ByteString.copyFrom(signature))
+                    .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                     .build();
 
             SendAmountResponse response = frontend.sendAmount(request);
@@ -236,8 +243,8 @@ public class App {
 
         int new_rid = this.rid + 1;
 
-        String finalString1 = publicKey.toString() + publicKey.toString() + new_rid + nonce;
-        byte [] signature1 = crypto.getSignature(finalString1, privateKey);
+        byte [] signature1 = crypto.getSignature(Payloads.checkAccountRequest(publicKey, publicKey, new_rid, nonce),
+                privateKey, Crypto.SIGNATURE_VERSION);
 
         CheckAccountResponse response1 = frontend.checkAccount(CheckAccountRequest.newBuilder()
                 .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
@@ -245,6 +252,7 @@ public class App {
                 .setRid(this.rid + 1)
                 .setNonce(nonce)
                 .setSignature(ByteString.copyFrom(signature1))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                 .build());
 
         if (response1 == null) {
@@ -281,7 +289,8 @@ public class App {
                             .setSignature(ByteString.copyFrom(signatureTrans))
                             .build();
 
-                    byte[] signature = crypto.getSignature(publicKey.toString() + future_balance + new_wid + Arrays.toString(pairSign) + transfer + toAuditTransaction, privateKey);
+                    byte[] signature = crypto.getSignature(Payloads.receiveAmountRequest(publicKey, future_balance, new_wid, pairSign,
+                            transfer, toAuditTransaction), privateKey, Crypto.SIGNATURE_VERSION);
 
                     ReceiveAmountRequest request = ReceiveAmountRequest.newBuilder()
                             .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
@@ -291,6 +300,7 @@ public class App {
                             .setTransfer(transfer)
                             .setToAuditTransaction(toAuditTransaction)
                             .setSignature(ByteString.copyFrom(signature))
+                            .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                             .build();
 
                     ReceiveAmountResponse response = frontend.receiveAmount(request);
@@ -325,8 +335,8 @@ public class App {
 
         int new_rid = this.rid + 1;
 
-        String finalString = publicKey.toString() + keyPair.getPublic().toString() + random + new_rid;
-        byte [] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        byte [] signature = crypto.getSignature(Payloads.auditRequest(publicKey, keyPair.getPublic(), random, new_rid),
+                keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
 
         AuditRequest request = AuditRequest.newBuilder()
                 .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
@@ -334,9 +344,36 @@ public class App {
                 .setNonce(random)
                 .setRid(this.rid + 1)
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                 .build();
 
-        AuditResponse response = frontend.audit(request);
+        return showAudit(request, frontend.audit(request), keyPair, username);
+    }
+
+    // Same as audit, but the replicas stream the history in chunks that are checked as they arrive
+    public AuditResponse auditStream(PublicKey publicKey, KeyPair keyPair, String username){
+
+        int random = crypto.getSecureRandom();
+
+        int new_rid = this.rid + 1;
+
+        byte [] signature = crypto.getSignature(Payloads.auditRequest(publicKey, keyPair.getPublic(), random, new_rid),
+                keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
+
+        AuditRequest request = AuditRequest.newBuilder()
+                .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                .setMyPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
+                .setNonce(random)
+                .setRid(this.rid + 1)
+                .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
+                .build();
+
+        return showAudit(request, frontend.auditStream(request), keyPair, username);
+    }
+
+    // Writes the audited history back to the replicas and prints it
+    private AuditResponse showAudit(AuditRequest request, AuditResponse response, KeyPair keyPair, String username) {
 
         if (response == null) {
             System.out.println("No quorum achieved!");
@@ -349,15 +386,15 @@ public class App {
 
                 PublicKey publicKey1 = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
 
-                String auditBackString = history + publicKey1.toString() + keyPair.getPublic().toString();
-
-                byte[] writeBackSignature = crypto.getSignature(auditBackString, keyPair.getPrivate());
+                byte[] writeBackSignature = crypto.getSignature(Payloads.auditWriteBackRequest(history, publicKey1, keyPair.getPublic()),
+                        keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
 
                 AuditWriteBackRequest request1 = AuditWriteBackRequest.newBuilder()
                         .addAllTransactions(history)
                         .setPublicKey(ByteString.copyFrom(publicKey1.getEncoded()))
                         .setMyPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                         .setSignature(ByteString.copyFrom(writeBackSignature))
+                        .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                         .build();
 
                 frontend.auditWriteBack(request1);
@@ -390,4 +427,70 @@ public class App {
             return response;
         }
     }
-}
\ No newline at end of file
+
+    // Fetches, a page at a time, only the transactions added to the account's history since the last
+    // call for that account. Returns them, or null if a page could not be read.
+    public List<Transaction> auditNew(PublicKey publicKey, KeyPair keyPair, String username, int pageSize){
+
+        List<Transaction> history = new ArrayList<>();
+        int cursor = auditCursors.getOrDefault(publicKey, 0);
+
+        while (true) {
+            int random = crypto.getSecureRandom();
+
+            int new_rid = this.rid + 1;
+
+            byte [] signature = crypto.getSignature(Payloads.auditPageRequest(publicKey, keyPair.getPublic(), random, new_rid, cursor, pageSize),
+                    keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
+
+            AuditPageRequest request = AuditPageRequest.newBuilder()
+                    .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                    .setMyPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
+                    .setNonce(random)
+                    .setRid(new_rid)
+                    .setCursor(cursor)
+                    .setPageSize(pageSize)
+                    .setSignature(ByteString.copyFrom(signature))
+                    .setSignatureVersion(Crypto.SIGNATURE_VERSION)
+                    .build();
+
+            AuditPageResponse response = frontend.auditPage(request);
+
+            if (response == null) {
+                System.out.println("No quorum achieved!");
+                return null;
+            } else if (!response.getMessage().equals("valid")) {
+                System.out.println(response.getMessage());
+                return null;
+            }
+
+            this.rid++;
+            history.addAll(response.getTransactionsList());
+            cursor = response.getNextCursor();
+
+            if (response.getTransactionsCount() == 0 || cursor >= response.getHistorySize()) {
+                break;
+            }
+        }
+
+        auditCursors.put(publicKey, cursor);
+
+        if (history.isEmpty()) {
+            System.out.println("\nNo new history to be shown.\n");
+        } else {
+
+            System.out.println("\nNew history:\n");
+
+            for (Transaction transaction : history) {
+                if (transaction.getSourceUsername().equals(username)) {
+                    System.out.println(transaction.getAmount() + " to " + transaction.getDestUsername());
+                } else {
+                    System.out.println(transaction.getAmount() + " from " + transaction.getSourceUsername());
+                }
+            }
+            System.out.println();
+        }
+
+        return history;
+    }
+}
@@ -97,8 +97,9 @@ public class AppMain {
 						"\n2) Send Amount" +
 						"\n3) Receive Amount" +
 						"\n4) Audit" +
-						"\n5) Ping" +
-						"\n6) Logout" +
+						"\n5) Audit new transactions" +
+						"\n6) Ping" +
+						"\n7) Logout" +
 						"\nSelect Operation: ");
 
 				scanned = scanner.nextLine();
@@ -147,10 +148,20 @@ public class AppMain {
 						break;
 
 					case "5":
-						app.ping();
+						System.out.print("\nAccount username: ");
+						username = scanner.nextLine();
+						if (existsAccount(username)) {
+							app.auditNew(getPubKeyfromCert(username), keyPair, username, 50);
+						} else {
+							System.out.println("No account found with that username.");
+						}
 						break;
 
 					case "6":
+						app.ping();
+						break;
+
+					case "7":
 						logout = true;
 						System.out.println("Logging out.");
 						break;
@@ -0,0 +1,105 @@
+package pt.tecnico.bank.app;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import pt.tecnico.bank.Crypto;
+import pt.tecnico.bank.Payloads;
+import pt.tecnico.bank.grpc.AuditChunk;
+import pt.tecnico.bank.grpc.AuditRequest;
+import pt.tecnico.bank.grpc.Transaction;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+// Checks the chunks of one replica's auditStream reply as they arrive and keeps their transactions.
+// Once the reply completes it adds itself to the collector.
+public class AuditStreamObserver implements StreamObserver<AuditChunk> {
+
+    final RespCollector collector;
+    final CountDownLatch finishLatch;
+    private final Crypto crypto;
+    private final AuditRequest request;
+    private final Runnable refused;
+
+    final List<Transaction> transactions = new ArrayList<>();
+    ByteString serverPublicKey;
+    String message;
+    int historySize;
+    boolean valid = true;
+    private int sequence;
+    private boolean last;
+
+    // refused runs if the replica turns down our proof of work
+    public AuditStreamObserver(RespCollector collector, CountDownLatch fLatch, Crypto crypto, AuditRequest request, Runnable refused) {
+        this.collector = collector;
+        this.finishLatch = fLatch;
+        this.crypto = crypto;
+        this.request = request;
+        this.refused = refused;
+    }
+
+    @Override
+    public void onNext(AuditChunk chunk) {
+        if (!valid) {
+            return;
+        }
+
+        try {
+            PublicKey serverPubKey = crypto.getPubKeyGrpc(chunk.getPublicKey().toByteArray());
+            boolean signed = crypto.verifySignature(Payloads.auditChunk(serverPubKey, chunk.getTransactionsList(), chunk.getNonce(),
+                    chunk.getRid(), chunk.getSequence(), chunk.getLast(), chunk.getHistorySize(), chunk.getMessage()),
+                    serverPubKey, chunk.getSignature().toByteArray(), chunk.getSignatureVersion());
+
+            if (last || !signed
+                    || request.getNonce() + 1 != chunk.getNonce() || request.getRid() != chunk.getRid()
+                    || chunk.getSequence() != sequence || (serverPublicKey != null && !serverPublicKey.equals(chunk.getPublicKey()))) {
+                valid = false;
+                return;
+            }
+
+            PublicKey transactionPubK = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
+            for (Transaction transaction : chunk.getTransactionsList()) {
+                String transactionString = transaction.getSourceUsername() + transaction.getDestUsername()
+                        + transaction.getAmount() + crypto.getPubKeyGrpc(transaction.getSource().toByteArray())
+                        + crypto.getPubKeyGrpc(transaction.getDestination().toByteArray()) + transaction.getWid();
+
+                if (!crypto.verifyCachedSignature(transactionString, transactionPubK, transaction.getSignature().toByteArray())) {
+                    valid = false;
+                    return;
+                }
+            }
+
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            System.out.println("Something wrong with the algorithm!");
+            valid = false;
+            return;
+        }
+
+        transactions.addAll(chunk.getTransactionsList());
+        serverPublicKey = chunk.getPublicKey();
+        message = chunk.getMessage();
+        if (ChallengeLease.REFUSED.equals(message)) {
+            refused.run();
+        }
+        historySize = chunk.getHistorySize();
+        last = chunk.getLast();
+        sequence++;
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+    }
+
+    @Override
+    public void onCompleted() {
+        if (!last) {
+            valid = false;
+        }
+        collector.responses.add(this);
+        finishLatch.countDown();
+    }
+}
@@ -0,0 +1,54 @@
+package pt.tecnico.bank.app;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+
+// A replica's proof of work challenge, usable for a number of reads until it expires. Each read proves
+// work over the challenge, our public key and the next counter, so no two reads send the same proof.
+// Replicas that predate leases (uses 0) accept only the bare challenge, once.
+public class ChallengeLease {
+
+    // what a replica answers to a proof over a challenge it no longer holds
+    static final String REFUSED = "No proof of work or wrong challenge!";
+
+    // renew a little before the replica's deadline, which started counting before our clock did
+    private static final long EXPIRY_MARGIN_MILLIS = 1000;
+
+    final byte[] challenge;
+    final int difficulty;
+    private final int uses;
+    private final long expiry;
+    private int counter;
+
+    public ChallengeLease(byte[] challenge, int difficulty, int uses, int seconds, long issued) {
+        this.challenge = challenge;
+        this.difficulty = difficulty;
+        this.uses = uses;
+        this.expiry = uses == 0 ? Long.MAX_VALUE : issued + seconds * 1000L - EXPIRY_MARGIN_MILLIS;
+    }
+
+    public boolean isUsable(long now) {
+        return counter < Math.max(uses, 1) && now < expiry;
+    }
+
+    // The PoW input for the next read
+    public byte[] next(byte[] myPublicKey) {
+        byte[] concatenated = Bytes.concat(challenge, myPublicKey);
+        if (uses > 0) {
+            concatenated = Bytes.concat(concatenated, Ints.toByteArray(counter));
+        }
+        counter++;
+        return concatenated;
+    }
+
+    // A solved read
+    static class Proof {
+        final byte[] concatenated;
+        final long pow;
+
+        Proof(byte[] concatenated, long pow) {
+            this.concatenated = concatenated;
+            this.pow = pow;
+        }
+    }
+}
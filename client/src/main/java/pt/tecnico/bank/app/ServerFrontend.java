@@ -1,29 +1,37 @@
 package pt.tecnico.bank.app;
 
-import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import pt.tecnico.bank.Crypto;
+import pt.tecnico.bank.Payloads;
 import pt.tecnico.bank.grpc.*;
 
 import java.io.ByteArrayOutputStream;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class ServerFrontend implements AutoCloseable {
 
+    private static final long RENEW_BACKOFF_MILLIS = 5000;
+
     private final List<ManagedChannel> channels;
     private final List<ServerServiceGrpc.ServerServiceStub> stubs;
     private final int quorum;
     private final int byzantine;
     private final Crypto crypto;
-    private HashMap<Integer, byte[]> proofs;
+    private Map<Integer, ChallengeLease> leases;
+    // when each replica whose renewal is pending or went unanswered may be asked again
+    private Map<Integer, Long> renewAfter;
     private int numberChannels;
     KeyPair keyPair;
 
@@ -34,7 +42,8 @@ public class ServerFrontend implements AutoCloseable {
         this.byzantine = value;
         this.quorum = 2 * value + 1;
         this.crypto = crypto;
-        this.proofs = new HashMap<>();
+        this.leases = new ConcurrentHashMap<>();
+        this.renewAfter = new ConcurrentHashMap<>();
 
         for (int i = 0; i < numberChannels; i++){
             ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", 8080 + i).usePlaintext().build();
@@ -45,48 +54,111 @@ public class ServerFrontend implements AutoCloseable {
 
     /* ---------- Services ---------- */
 
-    public void proof() {
+    // Asks the given replicas for new challenges and waits until needed of them answer, for at most a
+    // deadline. Answers that come later still fill in their leases for the next read.
+    private void proof(List<Integer> ports, int needed) {
 
-        RespCollector collector = new RespCollector();
-        CountDownLatch finishLatch = new CountDownLatch(quorum);
+        CountDownLatch finishLatch = new CountDownLatch(Math.min(needed, ports.size()));
 
         int nonce = crypto.getSecureRandom();
+        long issued = System.currentTimeMillis();
 
-        String proofString = nonce + keyPair.getPublic().toString();
-        byte[] signature = crypto.getSignature(proofString, keyPair.getPrivate());
+        byte[] signature = crypto.getSignature(Payloads.proofOfWorkRequest(nonce, keyPair.getPublic()), keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
         ProofOfWorkRequest proofRequest = ProofOfWorkRequest.newBuilder().setNonce(nonce)
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
-                .setSignature(ByteString.copyFrom(signature)).build();
-
-        for (ServerServiceGrpc.ServerServiceStub stub : this.stubs) {
-            stub.withDeadlineAfter(3, TimeUnit.SECONDS).proof(proofRequest, new Observer<>(collector, finishLatch));
+                .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION).build();
+
+        for (int port : ports) {
+            // not asked again until this request has had its chance, however it ends
+            renewAfter.put(port, issued + RENEW_BACKOFF_MILLIS);
+            stubs.get(port - 8080).withDeadlineAfter(3, TimeUnit.SECONDS).proof(proofRequest, new Observer<ProofOfWorkResponse>(null, finishLatch) {
+                @Override
+                public void onNext(ProofOfWorkResponse response) {
+                    lease(response, issued);
+                }
+            });
         }
 
         try {
-            finishLatch.await();
+            finishLatch.await(3, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             System.out.println("Error");
         }
+    }
 
-        Iterator<Object> iterator = collector.responses.iterator();
+    private void lease(ProofOfWorkResponse response, long issued) {
+        try {
+            PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getServerPubkey().toByteArray());
+            int nonceSever = response.getNonce();
+            byte[] challenge = response.getChallenge().toByteArray();
+            boolean signed = crypto.verifySignature(Payloads.proofOfWorkResponse(nonceSever, challenge, serverPubKey,
+                    response.getMessage(), response.getPort(), response.getDifficulty(), response.getLeaseUses(), response.getLeaseSeconds()),
+                    serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
+            int difficulty = response.getDifficulty() == 0 ? Crypto.DEFAULT_POW_DIFFICULTY : response.getDifficulty();
+            // a replica asking for more work than any honest one would is ignored
+            if (signed && 0 < difficulty && difficulty <= Crypto.MAX_POW_DIFFICULTY) {
+                leases.put(response.getPort(), new ChallengeLease(challenge, difficulty, response.getLeaseUses(), response.getLeaseSeconds(), issued));
+                renewAfter.remove(response.getPort());
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            System.out.println("Something wrong with the algorithm!");
+        }
+    }
 
-        synchronized (collector.responses) {
-            while (iterator.hasNext()) {
-                ProofOfWorkResponse response = (ProofOfWorkResponse) iterator.next();
+    // Proofs of work for the next read from every replica with a usable lease. New challenges are only
+    // fetched from the replicas whose lease ran out, so the others keep theirs, and a replica that did not
+    // answer its last renewal is skipped until RENEW_BACKOFF_MILLIS have passed, so one slow or dead
+    // replica does not put every read back at two round trips. Every challenge is solved at once, since
+    // each one is a separate search.
+    private Map<Integer, ChallengeLease.Proof> solveProofs(ByteString myPublicKey) {
+
+        long now = System.currentTimeMillis();
+        List<Integer> renew = new ArrayList<>();
+        int usable = 0;
+        for (int port = 8080; port < 8080 + numberChannels; port++) {
+            ChallengeLease lease = leases.get(port);
+            if (lease != null && lease.isUsable(now)) {
+                usable++;
+            } else if (now >= renewAfter.getOrDefault(port, 0L)) {
+                renew.add(port);
+            }
+        }
+        if (!renew.isEmpty()) {
+            proof(renew, quorum - usable);
+        }
 
-                try {
-                    PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getServerPubkey().toByteArray());
-                    int nonceSever = response.getNonce();
-                    byte[] challenge = response.getChallenge().toByteArray();
-                    String finalString = nonceSever + Arrays.toString(challenge) + serverPubKey.toString() + response.getMessage() + response.getPort();
-                    if (crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())) {
-                        proofs.put(response.getPort(), challenge);
-                    }
-                } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                    System.out.println("Something wrong with the algorithm!");
-                }
+        Map<Integer, byte[]> inputs = new HashMap<>();
+        Map<Integer, ForkJoinTask<Long>> solutions = new HashMap<>();
+        for (Map.Entry<Integer, ChallengeLease> lease : leases.entrySet()) {
+            if (!lease.getValue().isUsable(now)) {
+                continue;
             }
+            byte[] concatenated = lease.getValue().next(myPublicKey.toByteArray());
+            int difficulty = lease.getValue().difficulty;
+            inputs.put(lease.getKey(), concatenated);
+            solutions.put(lease.getKey(), ForkJoinPool.commonPool().submit(() -> crypto.generateProofOfWork(concatenated, difficulty)));
+        }
+
+        Map<Integer, ChallengeLease.Proof> proofs = new HashMap<>();
+        for (Map.Entry<Integer, ForkJoinTask<Long>> solution : solutions.entrySet()) {
+            proofs.put(solution.getKey(), new ChallengeLease.Proof(inputs.get(solution.getKey()), solution.getValue().join()));
         }
+        return proofs;
+    }
+
+    // A replica refuses a proof of work once it no longer holds the challenge, e.g. after a restart or
+    // a newer proof() from this client, so its lease is dropped and the next read asks for a new one
+    private <R> Observer<R> readObserver(int port, Function<R, String> message, RespCollector collector, CountDownLatch finishLatch) {
+        return new Observer<R>(collector, finishLatch) {
+            @Override
+            public void onNext(R response) {
+                if (ChallengeLease.REFUSED.equals(message.apply(response))) {
+                    leases.remove(port);
+                }
+                super.onNext(response);
+            }
+        };
     }
 
     public RidResponse rid(RidRequest request) {
@@ -114,8 +186,9 @@ public class ServerFrontend implements AutoCloseable {
                 RidResponse response = (RidResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getServerPubKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getRid() + response.getMessage();
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())) {
+                    boolean signed = crypto.verifySignature(Payloads.ridResponse(serverPubKey, response.getRid(), response.getMessage()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
+                    if (!signed) {
                         iterator.remove();
                         counter++;
                     } else {
@@ -178,8 +251,9 @@ public class ServerFrontend implements AutoCloseable {
                 OpenAccountResponse response = (OpenAccountResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getMessage();
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())) {
+                    boolean signed = crypto.verifySignature(Payloads.openAccountResponse(serverPubKey, response.getMessage()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
+                    if (!signed) {
                         iterator.remove();
                         counter++;
                     }
@@ -198,7 +272,7 @@ public class ServerFrontend implements AutoCloseable {
 
     public CheckAccountResponse checkAccount(CheckAccountRequest request) {
 
-        proof();
+        Map<Integer, ChallengeLease.Proof> proofs = solveProofs(request.getMyPublicKey());
 
         RespCollector collector = new RespCollector();
 
@@ -209,9 +283,8 @@ public class ServerFrontend implements AutoCloseable {
         for (ServerServiceGrpc.ServerServiceStub stub : this.stubs) {
 
             try {
-                byte[] challenge = proofs.get(port);
-                byte[] concatenated = Bytes.concat(challenge, request.getMyPublicKey().toByteArray());
-                long pow = crypto.generateProofOfWork(concatenated);
+                byte[] concatenated = proofs.get(port).concatenated;
+                long pow = proofs.get(port).pow;
 
                 CheckAccountRequest checkRequest = CheckAccountRequest.newBuilder()
                         .setPublicKey(request.getPublicKey())
@@ -221,11 +294,12 @@ public class ServerFrontend implements AutoCloseable {
                         .setPow(pow)
                         .setConcatenated(ByteString.copyFrom(concatenated))
                         .setSignature(request.getSignature())
+                        .setSignatureVersion(request.getSignatureVersion())
                         .build();
 
                 while (true) {
                     try {
-                        stub.withDeadlineAfter(3, TimeUnit.SECONDS).checkAccount(checkRequest, new Observer<>(collector, finishLatch));
+                        stub.withDeadlineAfter(3, TimeUnit.SECONDS).checkAccount(checkRequest, readObserver(port, CheckAccountResponse::getMessage, collector, finishLatch));
                         break;
                     } catch (StatusRuntimeException e) {
                         if (e.getStatus().getCode() == Status.DEADLINE_EXCEEDED.getCode()) {
@@ -254,18 +328,18 @@ public class ServerFrontend implements AutoCloseable {
                 CheckAccountResponse response = (CheckAccountResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getBalance()
-                            + response.getWid() + Arrays.toString(response.getPairSign().toByteArray())
-                            + response.getRid() + response.getMessage()
-                            + response.getTransactionsList() + response.getNonce();
+                    boolean signed = crypto.verifySignature(Payloads.checkAccountResponse(serverPubKey, response.getBalance(),
+                            response.getWid(), response.getPairSign().toByteArray(), response.getRid(), response.getMessage(),
+                            response.getTransactionsList(), response.getNonce()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
 
                     String pairSignString = String.valueOf(response.getBalance()) + response.getWid();
 
                     PublicKey otherPubK = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
 
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())
+                    if (!signed
                             || request.getNonce() + 1 != response.getNonce()
-                            || !crypto.verifySignature(pairSignString, otherPubK, response.getPairSign().toByteArray())
+                            || !crypto.verifyCachedSignature(pairSignString, otherPubK, response.getPairSign().toByteArray())
                             || request.getRid() != response.getRid()) {
 
                         iterator.remove();
@@ -279,7 +353,7 @@ public class ServerFrontend implements AutoCloseable {
                                     + transaction.getWid();
 
                             PublicKey transactionPubK = crypto.getPubKeyGrpc(transaction.getSource().toByteArray());
-                            if (!crypto.verifySignature(transactionString, transactionPubK, transaction.getSignature().toByteArray())) {
+                            if (!crypto.verifyCachedSignature(transactionString, transactionPubK, transaction.getSignature().toByteArray())) {
                                 fakeTransaction = true;
                                 break;
                             }
@@ -345,9 +419,10 @@ public class ServerFrontend implements AutoCloseable {
                 SendAmountResponse response = (SendAmountResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getMessage() + response.getWid();
+                    boolean signed = crypto.verifySignature(Payloads.sendAmountResponse(serverPubKey, response.getMessage(), response.getWid()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
 
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())) {
+                    if (!signed) {
                         iterator.remove();
                         counter++;
 
@@ -406,9 +481,10 @@ public class ServerFrontend implements AutoCloseable {
                 ReceiveAmountResponse response = (ReceiveAmountResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getMessage() + response.getWid();
+                    boolean signed = crypto.verifySignature(Payloads.receiveAmountResponse(serverPubKey, response.getMessage(), response.getWid()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
 
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())) {
+                    if (!signed) {
                         iterator.remove();
                         counter++;
                     } else {
@@ -433,7 +509,7 @@ public class ServerFrontend implements AutoCloseable {
 
     public AuditResponse audit(AuditRequest request) {
 
-        proof();
+        Map<Integer, ChallengeLease.Proof> proofs = solveProofs(request.getMyPublicKey());
 
         RespCollector collector = new RespCollector();
         CountDownLatch finishLatch = new CountDownLatch(quorum);
@@ -443,9 +519,8 @@ public class ServerFrontend implements AutoCloseable {
         for (ServerServiceGrpc.ServerServiceStub stub : this.stubs) {
 
             try {
-                byte[] challenge = proofs.get(port);
-                byte[] concatenated = Bytes.concat(challenge, request.getMyPublicKey().toByteArray());
-                long pow = crypto.generateProofOfWork(concatenated);
+                byte[] concatenated = proofs.get(port).concatenated;
+                long pow = proofs.get(port).pow;
 
                 AuditRequest auditRequest = AuditRequest.newBuilder()
                         .setPublicKey(request.getPublicKey())
@@ -455,10 +530,11 @@ public class ServerFrontend implements AutoCloseable {
                         .setPow(pow)
                         .setConcatenated(ByteString.copyFrom(concatenated))
                         .setSignature(request.getSignature())
+                        .setSignatureVersion(request.getSignatureVersion())
                         .build();
                 while (true) {
                     try {
-                        stub.withDeadlineAfter(3, TimeUnit.SECONDS).audit(auditRequest, new Observer<>(collector, finishLatch));
+                        stub.withDeadlineAfter(3, TimeUnit.SECONDS).audit(auditRequest, readObserver(port, AuditResponse::getMessage, collector, finishLatch));
                         break;
                     } catch (StatusRuntimeException e) {
                         if (e.getStatus().getCode() == Status.DEADLINE_EXCEEDED.getCode()) {
@@ -487,9 +563,11 @@ public class ServerFrontend implements AutoCloseable {
                 AuditResponse response = (AuditResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getTransactionsList() + response.getNonce() + response.getRid() + response.getMessage();
+                    boolean signed = crypto.verifySignature(Payloads.auditResponse(serverPubKey, response.getTransactionsList(),
+                            response.getNonce(), response.getRid(), response.getMessage()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
 
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray()) || request.getNonce() + 1 != response.getNonce()
+                    if (!signed || request.getNonce() + 1 != response.getNonce()
                             || request.getRid() != response.getRid()) {
 
                         iterator.remove();
@@ -502,7 +580,7 @@ public class ServerFrontend implements AutoCloseable {
                                     + crypto.getPubKeyGrpc(transaction.getDestination().toByteArray()) + transaction.getWid();
 
                             PublicKey transactionPubK = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
-                            if (!crypto.verifySignature(transactionString, transactionPubK, transaction.getSignature().toByteArray())) {
+                            if (!crypto.verifyCachedSignature(transactionString, transactionPubK, transaction.getSignature().toByteArray())) {
                                 fakeTransaction = true;
                                 break;
                             }
@@ -533,6 +611,172 @@ public class ServerFrontend implements AutoCloseable {
         }
     }
 
+    public AuditPageResponse auditPage(AuditPageRequest request) {
+
+        Map<Integer, ChallengeLease.Proof> proofs = solveProofs(request.getMyPublicKey());
+
+        RespCollector collector = new RespCollector();
+        CountDownLatch finishLatch = new CountDownLatch(quorum);
+
+        int port = 8080;
+
+        for (ServerServiceGrpc.ServerServiceStub stub : this.stubs) {
+
+            try {
+                byte[] concatenated = proofs.get(port).concatenated;
+                long pow = proofs.get(port).pow;
+
+                AuditPageRequest pageRequest = request.toBuilder()
+                        .setPow(pow)
+                        .setConcatenated(ByteString.copyFrom(concatenated))
+                        .build();
+                while (true) {
+                    try {
+                        stub.withDeadlineAfter(3, TimeUnit.SECONDS).auditPage(pageRequest, readObserver(port, AuditPageResponse::getMessage, collector, finishLatch));
+                        break;
+                    } catch (StatusRuntimeException e) {
+                        if (e.getStatus().getCode() == Status.DEADLINE_EXCEEDED.getCode()) {
+                            System.out.println("Stub error");
+                        }
+                    }
+                }
+            } catch (NullPointerException ignored) {}
+            port++;
+        }
+
+        try {
+            finishLatch.await();
+        } catch (InterruptedException e) {
+            System.out.println("Error");
+        }
+
+        Iterator<Object> iterator = collector.responses.iterator();
+        int counter = 0;
+        AuditPageResponse bestResponse = null;
+
+        synchronized (collector.responses) {
+            while (iterator.hasNext()) {
+                boolean fakeTransaction = false;
+                AuditPageResponse response = (AuditPageResponse) iterator.next();
+                try {
+                    PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
+                    boolean signed = crypto.verifySignature(Payloads.auditPageResponse(serverPubKey, response.getTransactionsList(),
+                            response.getNonce(), response.getRid(), response.getCursor(), response.getNextCursor(), response.getHistorySize(),
+                            response.getMessage()), serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
+
+                    if (!signed || request.getNonce() + 1 != response.getNonce()
+                            || request.getRid() != response.getRid() || request.getCursor() != response.getCursor()
+                            || response.getNextCursor() != response.getCursor() + response.getTransactionsCount()) {
+
+                        iterator.remove();
+                        counter++;
+
+                    } else {
+                        for (Transaction transaction : response.getTransactionsList()){
+                            String transactionString = transaction.getSourceUsername() + transaction.getDestUsername()
+                                    + transaction.getAmount() + crypto.getPubKeyGrpc(transaction.getSource().toByteArray())
+                                    + crypto.getPubKeyGrpc(transaction.getDestination().toByteArray()) + transaction.getWid();
+
+                            PublicKey transactionPubK = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
+                            if (!crypto.verifyCachedSignature(transactionString, transactionPubK, transaction.getSignature().toByteArray())) {
+                                fakeTransaction = true;
+                                break;
+                            }
+                        }
+
+                        if (fakeTransaction) {
+                            iterator.remove();
+                            counter++;
+
+                        } else if (bestResponse == null || response.getHistorySize() > bestResponse.getHistorySize()
+                                || (response.getHistorySize() == bestResponse.getHistorySize() && response.getTransactionsCount() > bestResponse.getTransactionsCount())) {
+                            bestResponse = response;
+                        }
+                    }
+
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                    System.out.println("Something wrong with the algorithm!");
+                }
+            }
+        }
+
+        if (counter > this.byzantine) {
+            return null;
+        } else {
+            return bestResponse;
+        }
+    }
+
+    // Same as audit, but each replica streams the history in signed chunks that are checked as they
+    // arrive. The best reply is returned as an unsigned AuditResponse holding all its transactions.
+    public AuditResponse auditStream(AuditRequest request) {
+
+        Map<Integer, ChallengeLease.Proof> proofs = solveProofs(request.getMyPublicKey());
+
+        RespCollector collector = new RespCollector();
+        CountDownLatch finishLatch = new CountDownLatch(quorum);
+
+        int port = 8080;
+
+        for (ServerServiceGrpc.ServerServiceStub stub : this.stubs) {
+
+            try {
+                byte[] concatenated = proofs.get(port).concatenated;
+                long pow = proofs.get(port).pow;
+
+                AuditRequest auditRequest = request.toBuilder()
+                        .setPow(pow)
+                        .setConcatenated(ByteString.copyFrom(concatenated))
+                        .build();
+                while (true) {
+                    try {
+                        int replica = port;
+                        stub.withDeadlineAfter(30, TimeUnit.SECONDS).auditStream(auditRequest,
+                                new AuditStreamObserver(collector, finishLatch, crypto, auditRequest, () -> leases.remove(replica)));
+                        break;
+                    } catch (StatusRuntimeException e) {
+                        if (e.getStatus().getCode() == Status.DEADLINE_EXCEEDED.getCode()) {
+                            System.out.println("Stub error");
+                        }
+                    }
+                }
+            } catch (NullPointerException ignored) {}
+            port++;
+        }
+
+        try {
+            finishLatch.await();
+        } catch (InterruptedException e) {
+            System.out.println("Error");
+        }
+
+        int counter = 0;
+        AuditStreamObserver best = null;
+
+        synchronized (collector.responses) {
+            for (Object response : collector.responses) {
+                AuditStreamObserver reply = (AuditStreamObserver) response;
+                if (!reply.valid) {
+                    counter++;
+                } else if (best == null || reply.transactions.size() > best.transactions.size()) {
+                    best = reply;
+                }
+            }
+        }
+
+        if (counter > this.byzantine || best == null) {
+            return null;
+        } else {
+            return AuditResponse.newBuilder()
+                    .setPublicKey(best.serverPublicKey)
+                    .addAllTransactions(best.transactions)
+                    .setNonce(request.getNonce() + 1)
+                    .setRid(request.getRid())
+                    .setMessage(best.message)
+                    .build();
+        }
+    }
+
     public CheckWriteBackResponse checkWriteBack(CheckWriteBackRequest request) {
 
         RespCollector collector = new RespCollector();
@@ -556,9 +800,10 @@ public class ServerFrontend implements AutoCloseable {
                 CheckWriteBackResponse response = (CheckWriteBackResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getMessage();
+                    boolean signed = crypto.verifySignature(Payloads.checkWriteBackResponse(serverPubKey, response.getMessage()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
 
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())) {
+                    if (!signed) {
                         iterator.remove();
                         counter++;
                     }
@@ -598,9 +843,10 @@ public class ServerFrontend implements AutoCloseable {
                 AuditWriteBackResponse response = (AuditWriteBackResponse) iterator.next();
                 try {
                     PublicKey serverPubKey = crypto.getPubKeyGrpc(response.getPublicKey().toByteArray());
-                    String finalString = serverPubKey.toString() + response.getMessage();
+                    boolean signed = crypto.verifySignature(Payloads.auditWriteBackResponse(serverPubKey, response.getMessage()),
+                            serverPubKey, response.getSignature().toByteArray(), response.getSignatureVersion());
 
-                    if (!crypto.verifySignature(finalString, serverPubKey, response.getSignature().toByteArray())) {
+                    if (!signed) {
                         iterator.remove();
                         counter++;
                     }
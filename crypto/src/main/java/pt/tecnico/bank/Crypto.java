@@ -11,20 +11,69 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Crypto {
 
-    private int powDifficulty = 2;
+    // Signature formats. Signed messages carry a signature_version saying which one they use; 0 means the
+    // field was not set, by a peer that predates it, so LEGACY_SIGNATURE.
+    public static final int LEGACY_SIGNATURE = 1;      // toString() of every field, concatenated
+    public static final int CANONICAL_SIGNATURE = 2;   // Payload bytes
+
+    // the format new messages are signed with, and the oldest one still accepted; during a rollout
+    // run upgraded nodes with bank.signatureVersion=1 until every peer understands version 2
+    public static final int SIGNATURE_VERSION = Integer.getInteger("bank.signatureVersion", CANONICAL_SIGNATURE);
+    private static final int MIN_SIGNATURE_VERSION = Integer.getInteger("bank.minSignatureVersion", LEGACY_SIGNATURE);
+
+    // JCA engines are costly to look up and not thread-safe. Idle ones wait in a pool rather than in
+    // thread-locals, since a server on virtual threads runs every request on a new thread.
+    private static final Engines<Signature> SIGNATURE = new Engines<>(() -> Signature.getInstance("SHA256withRSA"));
+    private static final Engines<MessageDigest> SHA256 = new Engines<>(() -> MessageDigest.getInstance("SHA-256"));
+    private static final Engines<KeyFactory> RSA = new Engines<>(() -> KeyFactory.getInstance("RSA"));
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Decoded public keys by their encoding, least recently used first. The same few keys arrive on
+    // every request and twice more in every transaction they carry.
+    private static final int KEY_CACHE_SIZE = Integer.getInteger("bank.keyCacheSize", 1024);
+    private static final Map<ByteBuffer, PublicKey> KEY_CACHE = new LinkedHashMap<ByteBuffer, PublicKey>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PublicKey> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+    };
+    private static final AtomicLong keyCacheHits = new AtomicLong();
+    private static final AtomicLong keyCacheMisses = new AtomicLong();
+
+    // Digests of (key, message, signature) triples already verified as valid, least recently used first.
+    // Replies carry the same signed transactions again and again, from every replica.
+    private static final int SIGNATURE_CACHE_SIZE = Integer.getInteger("bank.signatureCacheSize", 4096);
+    private static final Map<ByteBuffer, Boolean> SIGNATURE_CACHE = new LinkedHashMap<ByteBuffer, Boolean>(256, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+            return size() > SIGNATURE_CACHE_SIZE;
+        }
+    };
+    private static final AtomicLong signatureCacheHits = new AtomicLong();
+    private static final AtomicLong signatureCacheMisses = new AtomicLong();
+
+    // The proof of work search is split into POW_TASKS fork-join tasks, each trying every POW_TASKS-th
+    // block of POW_BLOCK counters until one of them finds a proof
+    private static final int POW_TASKS = Integer.getInteger("bank.powThreads", Runtime.getRuntime().availableProcessors());
+    private static final int POW_BLOCK = 4096;
+
+    // Proof of work difficulties are counted in leading zero bits of the hash. Replicas pick one per
+    // challenge; replicas that predate that always asked for DEFAULT_POW_DIFFICULTY.
+    public static final int DEFAULT_POW_DIFFICULTY = 16;
+    public static final int MAX_POW_DIFFICULTY = 32;
 
     public Crypto() { }
 
     public int getSecureRandom() {
-        try {
-            return SecureRandom.getInstance("SHA1PRNG").nextInt();
-        } catch (NoSuchAlgorithmException e){
-            System.out.println("Wrong Algorithm.");
-            return 0;
-        }
+        return RANDOM.nextInt();
     }
 
     public static void generateStoreandCer(String username, String password) {
@@ -100,51 +149,234 @@ public class Crypto {
     }
 
     public byte[] getSignature(String finalString, PrivateKey privateKey) {
+        return sign(finalString.getBytes(), privateKey);
+    }
+
+    public boolean verifySignature(String finalString, PublicKey publicKey, byte[] signature){
+        return verify(finalString.getBytes(), publicKey, signature);
+    }
+
+    // Same as verifySignature, for signatures that are verified over and over, like the ones on
+    // transactions. Only valid signatures are remembered.
+    public boolean verifyCachedSignature(String finalString, PublicKey publicKey, byte[] signature) {
+        MessageDigest digest = SHA256.take();
+        byte[] message = finalString.getBytes();
+        ByteBuffer key;
+        try {
+            digest.update(publicKey.getEncoded());
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(message.length).array());
+            digest.update(message);
+            digest.update(signature);
+            key = ByteBuffer.wrap(digest.digest());
+        } finally {
+            SHA256.give(digest);
+        }
+
+        synchronized (SIGNATURE_CACHE) {
+            if (SIGNATURE_CACHE.get(key) != null) {
+                signatureCacheHits.incrementAndGet();
+                return true;
+            }
+        }
+
+        signatureCacheMisses.incrementAndGet();
+        if (!verifySignature(finalString, publicKey, signature)) {
+            return false;
+        }
+        synchronized (SIGNATURE_CACHE) {
+            SIGNATURE_CACHE.put(key, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    public static byte[] sha256(byte[] data) {
+        MessageDigest digest = SHA256.take();
+        try {
+            return digest.digest(data);
+        } finally {
+            SHA256.give(digest);
+        }
+    }
+
+    public static long getSignatureCacheHits() { return signatureCacheHits.get(); }
+    public static long getSignatureCacheMisses() { return signatureCacheMisses.get(); }
+
+    public static boolean isLegacySignature(int version) {
+        return version <= LEGACY_SIGNATURE;
+    }
+
+    public byte[] getSignature(Payload payload, PrivateKey privateKey) {
+        return sign(payload.toByteArray(), privateKey);
+    }
+
+    public boolean verifySignature(Payload payload, PublicKey publicKey, byte[] signature) {
+        return verify(payload.toByteArray(), publicKey, signature);
+    }
+
+    private static byte[] sign(byte[] message, PrivateKey privateKey) {
+        Signature dsaForSign = SIGNATURE.take();
         try {
-            Signature dsaForSign = Signature.getInstance("SHA256withRSA");
             dsaForSign.initSign(privateKey);
-            dsaForSign.update(finalString.getBytes());
+            dsaForSign.update(message);
             return dsaForSign.sign();
-        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+        } catch (InvalidKeyException | SignatureException e) {
             System.out.println("Something went wrong while signing.");
             return null;
+        } finally {
+            SIGNATURE.give(dsaForSign);
         }
     }
 
-    public boolean verifySignature(String finalString, PublicKey publicKey, byte[] signature){
+    private static boolean verify(byte[] message, PublicKey publicKey, byte[] signature) {
+        Signature dsaForVerify = SIGNATURE.take();
         try {
-            Signature dsaForVerify = Signature.getInstance("SHA256withRSA");
             dsaForVerify.initVerify(publicKey);
-            dsaForVerify.update(finalString.getBytes());
+            dsaForVerify.update(message);
             return dsaForVerify.verify(signature);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e){
+        } catch (InvalidKeyException | SignatureException e){
             return false;
+        } finally {
+            SIGNATURE.give(dsaForVerify);
         }
     }
 
+    // For message signatures in the legacy format, which can be switched off once every peer is upgraded
+    public boolean verifyLegacySignature(String finalString, PublicKey publicKey, byte[] signature) {
+        return MIN_SIGNATURE_VERSION <= LEGACY_SIGNATURE && verifySignature(finalString, publicKey, signature);
+    }
+
+    // Signs or verifies a message in the format of the given signature version
+    public byte[] getSignature(Payload payload, PrivateKey privateKey, int version) {
+        return isLegacySignature(version) ? getSignature(payload.toLegacyString(), privateKey) : getSignature(payload, privateKey);
+    }
+
+    public boolean verifySignature(Payload payload, PublicKey publicKey, byte[] signature, int version) {
+        return isLegacySignature(version)
+                ? verifyLegacySignature(payload.toLegacyString(), publicKey, signature)
+                : verifySignature(payload, publicKey, signature);
+    }
+
     public PublicKey getPubKeyGrpc(byte[] pubKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(pubKey));
+        ByteBuffer encoded = ByteBuffer.wrap(pubKey);
+
+        PublicKey publicKey;
+        synchronized (KEY_CACHE) {
+            publicKey = KEY_CACHE.get(encoded);
+        }
+        if (publicKey != null) {
+            keyCacheHits.incrementAndGet();
+            return publicKey;
+        }
+
+        keyCacheMisses.incrementAndGet();
+        KeyFactory factory = RSA.take();
+        try {
+            publicKey = factory.generatePublic(new X509EncodedKeySpec(pubKey));
+        } finally {
+            RSA.give(factory);
+        }
+        synchronized (KEY_CACHE) {
+            KEY_CACHE.put(ByteBuffer.wrap(pubKey.clone()), publicKey);
+        }
+        return publicKey;
     }
 
+    public static long getKeyCacheHits() { return keyCacheHits.get(); }
+    public static long getKeyCacheMisses() { return keyCacheMisses.get(); }
+
     public long generateProofOfWork(byte[] bytes) {
-        long pow = 0L;
-        while (!verifyProofOfWork(bytes, pow)) pow++;
-        return pow;
+        return generateProofOfWork(bytes, DEFAULT_POW_DIFFICULTY);
     }
 
-    public boolean verifyProofOfWork(byte[] bytes, long pow) {
+    // Any counter that makes a proof, not necessarily the smallest one
+    public long generateProofOfWork(byte[] bytes, int difficulty) {
+        AtomicLong found = new AtomicLong(-1);
+
+        if (POW_TASKS <= 1 || difficulty <= 8) {
+            searchProofOfWork(bytes, difficulty, 0, 1, found);
+            return found.get();
+        }
+
+        List<ForkJoinTask<?>> searches = new ArrayList<>(POW_TASKS);
+        for (int i = 0; i < POW_TASKS; i++) {
+            int task = i;
+            searches.add(ForkJoinTask.adapt(() -> searchProofOfWork(bytes, difficulty, task, POW_TASKS, found)));
+        }
+        ForkJoinTask.invokeAll(searches);
+        return found.get();
+    }
+
+    private void searchProofOfWork(byte[] bytes, int difficulty, int task, int tasks, AtomicLong found) {
+        // the challenge is copied once and only the trailing counter changes between attempts
+        ByteBuffer input = ByteBuffer.allocate(bytes.length + Long.BYTES).put(bytes);
+        MessageDigest digest = SHA256.take();
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash =
-                    md.digest(ByteBuffer.allocate(bytes.length + Long.BYTES).put(bytes).putLong(pow).array());
-            for (int i = 0; i < this.powDifficulty; i++) {
-                if (hash[i] != 0) return false;
+            for (long block = task; found.get() < 0; block += tasks) {
+                for (long pow = block * POW_BLOCK, end = pow + POW_BLOCK; pow < end; pow++) {
+                    if (hasProofOfWork(digest, input.putLong(bytes.length, pow).array(), difficulty)) {
+                        found.compareAndSet(-1, pow);
+                        return;
+                    }
+                }
             }
-            return true;
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("No such algorithm!");
-            return false;
+        } finally {
+            SHA256.give(digest);
         }
     }
 
+    public boolean verifyProofOfWork(byte[] bytes, long pow) {
+        return verifyProofOfWork(bytes, pow, DEFAULT_POW_DIFFICULTY);
+    }
+
+    public boolean verifyProofOfWork(byte[] bytes, long pow, int difficulty) {
+        MessageDigest digest = SHA256.take();
+        try {
+            return hasProofOfWork(digest, ByteBuffer.allocate(bytes.length + Long.BYTES).put(bytes).putLong(pow).array(), difficulty);
+        } finally {
+            SHA256.give(digest);
+        }
+    }
+
+    private static boolean hasProofOfWork(MessageDigest digest, byte[] input, int difficulty) {
+        byte[] hash = digest.digest(input);
+        int bytes = difficulty / 8;
+        for (int i = 0; i < bytes; i++) {
+            if (hash[i] != 0) return false;
+        }
+        int bits = difficulty % 8;
+        return bits == 0 || (hash[bytes] & 0xff) >>> (8 - bits) == 0;
+    }
+
+    private interface EngineFactory<T> {
+        T create() throws NoSuchAlgorithmException;
+    }
+
+    // Engines borrowed with take() and handed back with give(). Only as many stay idle as could run at
+    // once; the rest are dropped, so a burst of virtual threads doesn't leave thousands behind.
+    private static class Engines<T> {
+        private static final int IDLE = 4 * Runtime.getRuntime().availableProcessors();
+
+        private final ArrayBlockingQueue<T> idle = new ArrayBlockingQueue<>(IDLE);
+        private final EngineFactory<T> factory;
+
+        Engines(EngineFactory<T> factory) {
+            this.factory = factory;
+        }
+
+        T take() {
+            T engine = idle.poll();
+            if (engine != null) {
+                return engine;
+            }
+            try {
+                return factory.create();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Missing JCA algorithm: " + e.getMessage(), e);
+            }
+        }
+
+        void give(T engine) {
+            idle.offer(engine);
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package pt.tecnico.bank;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+// The canonical bytes a CANONICAL_SIGNATURE is computed over: the format version, the name of the
+// message being signed, then every signed field in order. Numbers are fixed-width and everything else
+// is length-prefixed, so two different field lists can never encode to the same bytes.
+// The same fields also give the LEGACY_SIGNATURE string, the toString() of each one concatenated, so a
+// message's two formats are built from one list and can't drift apart.
+public class Payload {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    // the legacy form of every field, only turned into a String if a legacy signature needs it
+    private final List<Object> fields = new ArrayList<>();
+
+    public Payload(String type) {
+        out.write(Crypto.CANONICAL_SIGNATURE);
+        write(type.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Payload add(int value) {
+        writeInt(value);
+        fields.add(value);
+        return this;
+    }
+
+    // For a field newer than the legacy format, e.g. add(difficulty, ""), which only CANONICAL_SIGNATURE covers
+    public Payload add(int value, Object legacy) {
+        writeInt(value);
+        fields.add(legacy);
+        return this;
+    }
+
+    public Payload add(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+        fields.add(value);
+        return this;
+    }
+
+    public Payload add(boolean value) {
+        out.write(value ? 1 : 0);
+        fields.add(value);
+        return this;
+    }
+
+    public Payload add(byte[] value) {
+        write(value);
+        fields.add(value);
+        return this;
+    }
+
+    // For a field whose legacy form isn't Arrays.toString(value), e.g. add(transaction.toByteArray(), transaction)
+    public Payload add(byte[] value, Object legacy) {
+        write(value);
+        fields.add(legacy);
+        return this;
+    }
+
+    public Payload add(String value) {
+        write(value.getBytes(StandardCharsets.UTF_8));
+        fields.add(value);
+        return this;
+    }
+
+    public Payload add(PublicKey value) {
+        write(value.getEncoded());
+        fields.add(value);
+        return this;
+    }
+
+    // e.g. add(transactions, Transaction::toByteArray)
+    public <T> Payload add(List<T> values, Function<T, byte[]> encoder) {
+        return add(values, encoder, values);
+    }
+
+    public <T> Payload add(List<T> values, Function<T, byte[]> encoder, Object legacy) {
+        writeInt(values.size());
+        for (T value : values) {
+            write(encoder.apply(value));
+        }
+        fields.add(legacy);
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    public String toLegacyString() {
+        StringBuilder legacy = new StringBuilder();
+        for (Object field : fields) {
+            legacy.append(field instanceof byte[] ? Arrays.toString((byte[]) field) : field);
+        }
+        return legacy.toString();
+    }
+
+    // Identifies the signed message where a String is needed, e.g. as an ADEB input
+    public String toString(int version) {
+        return Crypto.isLegacySignature(version) ? toLegacyString() : Base64.getEncoder().encodeToString(toByteArray());
+    }
+
+    private void writeInt(int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void write(byte[] value) {
+        writeInt(value.length);
+        out.write(value, 0, value.length);
+    }
+}
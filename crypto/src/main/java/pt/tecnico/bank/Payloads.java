@@ -0,0 +1,138 @@
+package pt.tecnico.bank;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.bank.grpc.Transaction;
+
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.List;
+
+// The signed fields of every message, in signing order. The side that signs a message and the side
+// that verifies it build its Payload here, so both formats of a signature cover the same fields.
+public final class Payloads {
+
+    private Payloads() { }
+
+    public static Payload ridResponse(PublicKey server, int rid, String message) {
+        return new Payload("RidResponse").add(server).add(rid).add(message);
+    }
+
+    public static Payload proofOfWorkRequest(int nonce, PublicKey client) {
+        return new Payload("ProofOfWorkRequest").add(nonce).add(client);
+    }
+
+    // clients from before difficulty and leases rebuild the legacy string from the first five fields only
+    public static Payload proofOfWorkResponse(int nonce, byte[] challenge, PublicKey server, String message, int port,
+                                              int difficulty, int leaseUses, int leaseSeconds) {
+        return new Payload("ProofOfWorkResponse").add(nonce).add(challenge).add(server).add(message).add(port)
+                .add(difficulty, "").add(leaseUses, "").add(leaseSeconds, "");
+    }
+
+    public static Payload openAccountRequest(PublicKey client, String username, int wid, int balance, byte[] pairSignature) {
+        return new Payload("OpenAccountRequest").add(client).add(username).add(wid).add(balance).add(pairSignature);
+    }
+
+    public static Payload openAccountResponse(PublicKey server, String message) {
+        return new Payload("OpenAccountResponse").add(server).add(message);
+    }
+
+    public static Payload checkAccountRequest(PublicKey account, PublicKey client, int rid, int nonce) {
+        return new Payload("CheckAccountRequest").add(account).add(client).add(rid).add(nonce);
+    }
+
+    public static Payload checkAccountResponse(PublicKey server, int balance, int wid, byte[] pairSignature, int rid,
+                                               String message, List<Transaction> pending, int nonce) {
+        return new Payload("CheckAccountResponse").add(server).add(balance).add(wid).add(pairSignature).add(rid)
+                .add(message).add(pending, Transaction::toByteArray).add(nonce);
+    }
+
+    // source and destination are the transaction's keys, decoded
+    public static Payload sendAmountRequest(Transaction transaction, PublicKey source, PublicKey destination,
+                                            byte[] pairSignature, int newBalance) {
+        return new Payload("SendAmountRequest").add(transaction.getSourceUsername()).add(transaction.getDestUsername())
+                .add(transaction.getAmount()).add(transaction.getSource().toByteArray(), source)
+                .add(transaction.getDestination().toByteArray(), destination).add(transaction.getSignature().toByteArray())
+                .add(transaction.getWid()).add(pairSignature).add(newBalance);
+    }
+
+    public static Payload sendAmountResponse(PublicKey server, String message, int wid) {
+        return new Payload("SendAmountResponse").add(server).add(message).add(wid);
+    }
+
+    public static Payload receiveAmountRequest(PublicKey client, int futureBalance, int wid, byte[] pairSignature,
+                                               int transfer, Transaction toAuditTransaction) {
+        return new Payload("ReceiveAmountRequest").add(client).add(futureBalance).add(wid).add(pairSignature)
+                .add(transfer).add(toAuditTransaction.toByteArray(), toAuditTransaction);
+    }
+
+    public static Payload receiveAmountResponse(PublicKey server, String message, int wid) {
+        return new Payload("ReceiveAmountResponse").add(server).add(message).add(wid);
+    }
+
+    public static Payload auditRequest(PublicKey account, PublicKey client, int nonce, int rid) {
+        return new Payload("AuditRequest").add(account).add(client).add(nonce).add(rid);
+    }
+
+    public static Payload auditResponse(PublicKey server, List<Transaction> history, int nonce, int rid, String message) {
+        return new Payload("AuditResponse").add(server).add(history, Transaction::toByteArray).add(nonce).add(rid).add(message);
+    }
+
+    public static Payload auditPageRequest(PublicKey account, PublicKey client, int nonce, int rid, int cursor, int pageSize) {
+        return new Payload("AuditPageRequest").add(account).add(client).add(nonce).add(rid).add(cursor).add(pageSize);
+    }
+
+    public static Payload auditPageResponse(PublicKey server, List<Transaction> page, int nonce, int rid, int cursor,
+                                            int nextCursor, int historySize, String message) {
+        return new Payload("AuditPageResponse").add(server).add(page, Transaction::toByteArray).add(nonce).add(rid)
+                .add(cursor).add(nextCursor).add(historySize).add(message);
+    }
+
+    public static Payload auditChunk(PublicKey server, List<Transaction> chunk, int nonce, int rid, int sequence,
+                                     boolean last, int historySize, String message) {
+        return new Payload("AuditChunk").add(server).add(chunk, Transaction::toByteArray).add(nonce).add(rid)
+                .add(sequence).add(last).add(historySize).add(message);
+    }
+
+    public static Payload checkWriteBackRequest(int balance, List<Transaction> pending, int wid, byte[] pairSignature,
+                                                PublicKey account, PublicKey client) {
+        return new Payload("CheckWriteBackRequest").add(balance).add(pending, Transaction::toByteArray).add(wid)
+                .add(pairSignature).add(account).add(client);
+    }
+
+    public static Payload checkWriteBackResponse(PublicKey server, String message) {
+        return new Payload("CheckWriteBackResponse").add(server).add(message);
+    }
+
+    public static Payload auditWriteBackRequest(List<Transaction> history, PublicKey account, PublicKey client) {
+        return new Payload("AuditWriteBackRequest").add(history, Transaction::toByteArray).add(account).add(client);
+    }
+
+    public static Payload auditWriteBackResponse(PublicKey server, String message) {
+        return new Payload("AuditWriteBackResponse").add(server).add(message);
+    }
+
+    public static Payload echoRequest(String input, int nonce, String serverName) {
+        return new Payload("EchoRequest").add(input).add(nonce).add(serverName);
+    }
+
+    public static Payload readyRequest(String input, int nonce, String serverName) {
+        return new Payload("ReadyRequest").add(input).add(nonce).add(serverName);
+    }
+
+    public static Payload echoBatchRequest(List<ByteString> digests, int nonce, String serverName) {
+        return new Payload("EchoBatchRequest").add(digests, ByteString::toByteArray, legacyString(digests)).add(nonce).add(serverName);
+    }
+
+    public static Payload readyBatchRequest(List<ByteString> digests, int nonce, String serverName) {
+        return new Payload("ReadyBatchRequest").add(digests, ByteString::toByteArray, legacyString(digests)).add(nonce).add(serverName);
+    }
+
+    // Base64 digests all have the same length, so their concatenation is unambiguous
+    private static String legacyString(List<ByteString> digests) {
+        StringBuilder builder = new StringBuilder();
+        for (ByteString digest : digests) {
+            builder.append(Base64.getEncoder().encodeToString(digest.toByteArray()));
+        }
+        return builder.toString();
+    }
+}
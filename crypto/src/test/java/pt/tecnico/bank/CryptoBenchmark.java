@@ -0,0 +1,111 @@
+package pt.tecnico.bank;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+
+// Compares the Crypto hot paths against looking up a fresh JCA engine on every call, which is what
+// Crypto used to do. Not a unit test; run it with
+//   mvn -pl crypto test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=pt.tecnico.bank.CryptoBenchmark
+public class CryptoBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final long ROUND_MILLIS = 1000;
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Crypto crypto = new Crypto();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        String message = "benchmark" + keyPair.getPublic() + 500 + 1;
+        byte[] signature = crypto.getSignature(message, keyPair.getPrivate());
+        byte[] encodedKey = keyPair.getPublic().getEncoded();
+        byte[] challenge = new byte[400];
+        new SecureRandom().nextBytes(challenge);
+
+        System.out.printf("%-22s %14s %14s %8s%n", "operation", "per call", "reused", "speedup");
+
+        compare("getSecureRandom",
+                () -> SecureRandom.getInstance("SHA1PRNG").nextInt(),
+                crypto::getSecureRandom);
+
+        compare("getSignature",
+                () -> {
+                    Signature sign = Signature.getInstance("SHA256withRSA");
+                    sign.initSign(keyPair.getPrivate());
+                    sign.update(message.getBytes());
+                    sign.sign();
+                },
+                () -> crypto.getSignature(message, keyPair.getPrivate()));
+
+        compare("verifySignature",
+                () -> {
+                    Signature verify = Signature.getInstance("SHA256withRSA");
+                    verify.initVerify(keyPair.getPublic());
+                    verify.update(message.getBytes());
+                    verify.verify(signature);
+                },
+                () -> crypto.verifySignature(message, keyPair.getPublic(), signature));
+
+        compare("verifyCachedSignature",
+                () -> crypto.verifySignature(message, keyPair.getPublic(), signature),
+                () -> crypto.verifyCachedSignature(message, keyPair.getPublic(), signature));
+
+        compare("getPubKeyGrpc",
+                () -> KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encodedKey)),
+                () -> crypto.getPubKeyGrpc(encodedKey));
+
+        long[] counter = new long[2];
+        compare("verifyProofOfWork",
+                () -> MessageDigest.getInstance("SHA-256")
+                        .digest(ByteBuffer.allocate(challenge.length + Long.BYTES).put(challenge).putLong(counter[0]++).array()),
+                () -> crypto.verifyProofOfWork(challenge, counter[1]++));
+
+        compare("generateProofOfWork",
+                () -> {
+                    long pow = 0L;
+                    while (true) {
+                        byte[] hash = MessageDigest.getInstance("SHA-256")
+                                .digest(ByteBuffer.allocate(challenge.length + Long.BYTES).put(challenge).putLong(pow).array());
+                        if (hash[0] == 0 && hash[1] == 0) break;
+                        pow++;
+                    }
+                },
+                () -> crypto.generateProofOfWork(challenge));
+
+        System.out.println("public key cache: " + Crypto.getKeyCacheHits() + " hits, " + Crypto.getKeyCacheMisses() + " misses");
+        System.out.println("signature cache: " + Crypto.getSignatureCacheHits() + " hits, " + Crypto.getSignatureCacheMisses() + " misses");
+    }
+
+    private static void compare(String name, Operation perCall, Operation reused) throws Exception {
+        double before = throughput(perCall);
+        double after = throughput(reused);
+        System.out.printf("%-22s %10.0f op/s %10.0f op/s %7.2fx%n", name, before, after, after / before);
+    }
+
+    // Best of ROUNDS one-second rounds, after one round of warm-up
+    private static double throughput(Operation operation) throws Exception {
+        double best = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long operations = 0;
+            long start = System.nanoTime();
+            long end = start + ROUND_MILLIS * 1_000_000;
+            long now;
+            do {
+                operation.run();
+                operations++;
+            } while ((now = System.nanoTime()) < end);
+
+            if (round > 0) {
+                best = Math.max(best, operations * 1e9 / (now - start));
+            }
+        }
+        return best;
+    }
+}
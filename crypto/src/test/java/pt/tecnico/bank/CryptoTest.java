@@ -0,0 +1,96 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CryptoTest {
+
+    private static final byte[] CHALLENGE = "challenge".getBytes();
+
+    private final Crypto crypto = new Crypto();
+
+    @Test
+    public void difficultyCountsBits() {
+        // for every number of leading zero bits up to 12, a counter whose hash has exactly that many
+        for (int zeros = 0; zeros <= 12; zeros++) {
+            long counter = counterWithLeadingZeros(zeros);
+            for (int difficulty = 0; difficulty <= zeros; difficulty++) {
+                assertTrue(crypto.verifyProofOfWork(CHALLENGE, counter, difficulty), zeros + " zeros, difficulty " + difficulty);
+            }
+            assertFalse(crypto.verifyProofOfWork(CHALLENGE, counter, zeros + 1), zeros + " zeros, difficulty " + (zeros + 1));
+        }
+    }
+
+    @Test
+    public void generatedProofsVerify() {
+        for (int difficulty : new int[]{1, 3, 7, 8, 9, 13, Crypto.DEFAULT_POW_DIFFICULTY}) {
+            long pow = crypto.generateProofOfWork(CHALLENGE, difficulty);
+            assertTrue(pow >= 0);
+            assertTrue(crypto.verifyProofOfWork(CHALLENGE, pow, difficulty), "difficulty " + difficulty);
+            assertTrue(leadingZeros(pow) >= difficulty, "difficulty " + difficulty);
+        }
+    }
+
+    @Test
+    public void defaultDifficulty() {
+        long pow = crypto.generateProofOfWork(CHALLENGE);
+        assertTrue(crypto.verifyProofOfWork(CHALLENGE, pow));
+        assertTrue(leadingZeros(pow) >= Crypto.DEFAULT_POW_DIFFICULTY);
+    }
+
+    @Test
+    public void enginesAreSharedAcrossVirtualThreads() throws NoSuchAlgorithmException, InterruptedException, ExecutionException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        // many more threads than engines are kept, each signing, verifying and hashing at once
+        List<Future<Boolean>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 500; i++) {
+                String message = "message " + i;
+                results.add(executor.submit(() -> {
+                    byte[] signature = crypto.getSignature(message, keyPair.getPrivate());
+                    return crypto.verifySignature(message, keyPair.getPublic(), signature)
+                            && !crypto.verifySignature(message + "!", keyPair.getPublic(), signature)
+                            && crypto.verifyProofOfWork(CHALLENGE, crypto.generateProofOfWork(CHALLENGE, 4), 4);
+                }));
+            }
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+    }
+
+    private static long counterWithLeadingZeros(int zeros) {
+        for (long counter = 0; ; counter++) {
+            if (leadingZeros(counter) == zeros) {
+                return counter;
+            }
+        }
+    }
+
+    private static int leadingZeros(long counter) {
+        byte[] hash = Crypto.sha256(ByteBuffer.allocate(CHALLENGE.length + Long.BYTES).put(CHALLENGE).putLong(counter).array());
+        int zeros = 0;
+        for (byte b : hash) {
+            if (b != 0) {
+                return zeros + Integer.numberOfLeadingZeros(b & 0xff) - 24;
+            }
+            zeros += 8;
+        }
+        return zeros;
+    }
+}
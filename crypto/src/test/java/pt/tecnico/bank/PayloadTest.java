@@ -0,0 +1,85 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PayloadTest {
+
+    private static KeyPair keyPair;
+
+    private final Crypto crypto = new Crypto();
+
+    @BeforeAll
+    public static void setUpKey() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void legacyStringConcatenatesFields() {
+        byte[] bytes = {1, 2, 3};
+        List<String> list = Arrays.asList("a", "b");
+        Payload payload = new Payload("Test").add(7).add(8L).add(true).add(bytes).add("message")
+                .add(keyPair.getPublic()).add(list, value -> value.getBytes(StandardCharsets.UTF_8))
+                .add(new byte[]{9}, "raw");
+
+        assertEquals(7 + "" + 8L + true + Arrays.toString(bytes) + "message" + keyPair.getPublic() + list + "raw",
+                payload.toLegacyString());
+    }
+
+    @Test
+    public void signsInTheRequestedFormat() {
+        Payload payload = Payloads.ridResponse(keyPair.getPublic(), 3, "valid");
+
+        byte[] legacy = crypto.getSignature(payload, keyPair.getPrivate(), Crypto.LEGACY_SIGNATURE);
+        assertTrue(crypto.verifySignature(keyPair.getPublic().toString() + 3 + "valid", keyPair.getPublic(), legacy));
+        assertTrue(crypto.verifySignature(payload, keyPair.getPublic(), legacy, Crypto.LEGACY_SIGNATURE));
+        assertFalse(crypto.verifySignature(payload, keyPair.getPublic(), legacy, Crypto.CANONICAL_SIGNATURE));
+
+        byte[] canonical = crypto.getSignature(payload, keyPair.getPrivate(), Crypto.CANONICAL_SIGNATURE);
+        assertTrue(crypto.verifySignature(payload, keyPair.getPublic(), canonical, Crypto.CANONICAL_SIGNATURE));
+        assertFalse(crypto.verifySignature(payload, keyPair.getPublic(), canonical, Crypto.LEGACY_SIGNATURE));
+    }
+
+    @Test
+    public void bothFormatsCoverEveryField() {
+        byte[] challenge = {4, 5, 6};
+        Payload signed = Payloads.auditPageResponse(keyPair.getPublic(), Collections.emptyList(), 1, 2, 0, 10, 10, "valid");
+        Payload later = Payloads.auditPageResponse(keyPair.getPublic(), Collections.emptyList(), 1, 2, 10, 20, 10, "valid");
+        Payload harder = Payloads.proofOfWorkResponse(1, challenge, keyPair.getPublic(), "valid", 8080, 20, 16, 30);
+
+        for (int version : new int[]{Crypto.LEGACY_SIGNATURE, Crypto.CANONICAL_SIGNATURE}) {
+            byte[] signature = crypto.getSignature(signed, keyPair.getPrivate(), version);
+            assertTrue(crypto.verifySignature(signed, keyPair.getPublic(), signature, version));
+            assertFalse(crypto.verifySignature(later, keyPair.getPublic(), signature, version));
+        }
+
+        // fields the legacy format never had are only covered by the canonical one
+        Payload signedWork = Payloads.proofOfWorkResponse(1, challenge, keyPair.getPublic(), "valid", 8080, 16, 16, 30);
+        byte[] canonical = crypto.getSignature(signedWork, keyPair.getPrivate(), Crypto.CANONICAL_SIGNATURE);
+        assertFalse(crypto.verifySignature(harder, keyPair.getPublic(), canonical, Crypto.CANONICAL_SIGNATURE));
+    }
+
+    @Test
+    public void proofOfWorkResponseKeepsTheBaselineLegacyString() {
+        byte[] challenge = {4, 5, 6};
+        Payload payload = Payloads.proofOfWorkResponse(1, challenge, keyPair.getPublic(), "valid", 8080, 16, 16, 30);
+
+        // what a client from before leases rebuilds and verifies
+        String baseline = 1 + Arrays.toString(challenge) + keyPair.getPublic().toString() + "valid" + 8080;
+        assertEquals(baseline, payload.toLegacyString());
+        byte[] legacy = crypto.getSignature(payload, keyPair.getPrivate(), Crypto.LEGACY_SIGNATURE);
+        assertTrue(crypto.verifySignature(baseline, keyPair.getPublic(), legacy));
+    }
+}
@@ -3,12 +3,18 @@ package pt.tecnico.bank;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import pt.tecnico.bank.grpc.ADEBMessage;
 import pt.tecnico.bank.grpc.ADEBServiceGrpc;
 import pt.tecnico.bank.grpc.EchoRequest;
 import pt.tecnico.bank.grpc.ReadyRequest;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static pt.tecnico.bank.ServerMain.*;
 
@@ -17,71 +23,187 @@ public class ADEB implements AutoCloseable {
     private int byzantine;
     private final List<ManagedChannel> channels;
     private final List<ADEBServiceGrpc.ADEBServiceStub> stubs;
+    // null when every message is its own unary call
+    private final List<ADEBStream> streams;
+    // this replica's own ADEBService, which gets its messages directly
+    private ADEBServiceImpl local;
+    private final int self;
     private int nServers;
     private String serverName;
     private int quorum;
+    private final ReplicaKeys replicaKeys;
+    // null when digests are sent one by one
+    private final Batch echoes;
+    private final Batch readies;
 
-    public ADEB(int byzantine, String serverName) {
+    public ADEB(int byzantine, String serverName, long batchWindow, boolean useStreams) {
         this.byzantine = byzantine;
         this.channels = new ArrayList<>();
         this.stubs = new ArrayList<>();
         this.nServers = 3*byzantine + 1;
         this.serverName = serverName;
         this.quorum = 2 * byzantine + 1;
+        this.self = port - 8080;
+        this.replicaKeys = new ReplicaKeys(nServers, ServerMain::getPublicKey);
 
         for (int i = 0; i < nServers; i++){
             ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", 8080 + i).usePlaintext().build();
             channels.add(channel);
             stubs.add(ADEBServiceGrpc.newStub(channel));
         }
+
+        if (useStreams) {
+            this.streams = new ArrayList<>();
+            for (int i = 0; i < nServers; i++) {
+                streams.add(new ADEBStream(stubs.get(i), "server_" + (8080 + i)));
+            }
+        } else {
+            this.streams = null;
+        }
+
+        if (batchWindow > 0) {
+            ScheduledExecutorService batcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "adeb-batcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.echoes = new Batch(batcher, batchWindow, this::sendEchoes);
+            this.readies = new Batch(batcher, batchWindow, this::sendReadies);
+        } else {
+            this.echoes = null;
+            this.readies = null;
+        }
     }
 
-    public void echo(String input) {
+    // What replicas agree on: the SHA-256 of the request's signed input, so broadcasts and the instance
+    // table stay small however long the input is
+    public static ByteString digest(String input) {
+        return ByteString.copyFrom(Crypto.sha256(input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // From then on the replica's messages to itself are neither signed for it, sent nor verified
+    public void setLocal(ADEBServiceImpl local) { this.local = local; }
+
+    public void echo(ByteString digest) {
+        if (echoes == null) {
+            sendEchoes(Collections.singletonList(digest));
+        } else {
+            echoes.add(digest);
+        }
+    }
+
+    public void ready(ByteString digest) {
+        if (readies == null) {
+            sendReadies(Collections.singletonList(digest));
+        } else {
+            readies.add(digest);
+        }
+    }
+
+    private void sendEchoes(List<ByteString> digests) {
 
         System.out.println("Receiving echos...");
 
         int nonce = crypto.getSecureRandom();
 
-        String finalString = input + nonce + serverName;
-
         EchoRequest request = EchoRequest.newBuilder()
-                .setSignature(ByteString.copyFrom(crypto.getSignature(finalString, keyPair.getPrivate())))
+                .setSignature(ByteString.copyFrom(sign(Payloads.echoBatchRequest(digests, nonce, serverName))))
                 .setServerPubkey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                 .setNonce(nonce)
                 .setServerName(serverName)
-                .setInput(input)
+                .addAllDigests(digests)
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                 .build();
 
-        for (ADEBServiceGrpc.ADEBServiceStub stub : this.stubs) {
-            stub.withDeadlineAfter(3, TimeUnit.SECONDS).echo(request, new ObserverADEB<>());
+        ADEBMessage message = ADEBMessage.newBuilder().setEcho(request).build();
+        for (int i = 0; i < nServers; i++) {
+            if (i == self && local != null) {
+                continue;
+            } else if (streams != null) {
+                streams.get(i).send(message);
+            } else {
+                stubs.get(i).withDeadlineAfter(3, TimeUnit.SECONDS).echo(request, new ObserverADEB<>());
+            }
+        }
+        if (local != null) {
+            digests.forEach(digest -> local.addEcho(digest, null));
         }
     }
 
-    public void ready(String input) {
+    private void sendReadies(List<ByteString> digests) {
 
         System.out.println("Receiving readys...");
 
         int nonce = crypto.getSecureRandom();
 
-        String finalString = input + nonce + serverName;
-
         ReadyRequest request = ReadyRequest.newBuilder()
-                .setSignature(ByteString.copyFrom(crypto.getSignature(finalString, keyPair.getPrivate())))
+                .setSignature(ByteString.copyFrom(sign(Payloads.readyBatchRequest(digests, nonce, serverName))))
                 .setServerPubkey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                 .setNonce(nonce)
                 .setServerName(serverName)
-                .setInput(input)
+                .addAllDigests(digests)
+                .setSignatureVersion(Crypto.SIGNATURE_VERSION)
                 .build();
 
-        for (ADEBServiceGrpc.ADEBServiceStub stub : this.stubs) {
-            stub.withDeadlineAfter(3, TimeUnit.SECONDS).ready(request, new ObserverADEB<>());
+        ADEBMessage message = ADEBMessage.newBuilder().setReady(request).build();
+        for (int i = 0; i < nServers; i++) {
+            if (i == self && local != null) {
+                continue;
+            } else if (streams != null) {
+                streams.get(i).send(message);
+            } else {
+                stubs.get(i).withDeadlineAfter(3, TimeUnit.SECONDS).ready(request, new ObserverADEB<>());
+            }
+        }
+        if (local != null) {
+            digests.forEach(digest -> local.addReady(digest, null));
         }
     }
 
+    private byte[] sign(Payload payload) {
+        return crypto.getSignature(payload, keyPair.getPrivate(), Crypto.SIGNATURE_VERSION);
+    }
+
     public int getQuorum() { return this.quorum; }
 
+    public ReplicaKeys getReplicaKeys() { return this.replicaKeys; }
+
+    // Digests queued within batchWindow milliseconds of the first one, sent together under one signature
+    private static class Batch {
+
+        private final ScheduledExecutorService batcher;
+        private final long window;
+        private final Consumer<List<ByteString>> send;
+        private List<ByteString> digests = new ArrayList<>();
+
+        Batch(ScheduledExecutorService batcher, long window, Consumer<List<ByteString>> send) {
+            this.batcher = batcher;
+            this.window = window;
+            this.send = send;
+        }
+
+        synchronized void add(ByteString digest) {
+            digests.add(digest);
+            if (digests.size() == 1) {
+                batcher.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void flush() {
+            List<ByteString> batch;
+            synchronized (this) {
+                batch = digests;
+                digests = new ArrayList<>();
+            }
+            send.accept(batch);
+        }
+    }
+
     @Override
     public final void close() {
+        if (this.streams != null) {
+            this.streams.forEach(ADEBStream::close);
+        }
         this.channels.forEach(ManagedChannel::shutdown);
     }
 }
@@ -1,31 +1,37 @@
 package pt.tecnico.bank;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 
 public class ADEBInstance {
 
-    private CountDownLatch latch;
+    private final CompletableFuture<Void> delivery;
+    private final String origin;
+    private final long created;
     private int echos;
     private int readys;
     private boolean sentReady;
 
-    public ADEBInstance() {
-        latch = new CountDownLatch(1);
+    public ADEBInstance(String origin, long created) {
+        delivery = new CompletableFuture<>();
+        this.origin = origin;
+        this.created = created;
         this.echos = 0;
         this.readys = 0;
     }
 
     public void addEcho() { this.echos++; }
     public void addReady() { this.readys++; }
-    public void await() {
-        try {
-            this.latch.await();
-        } catch (InterruptedException e){
-            System.out.println("AWAIT ERROR");
-        }
-    }
 
-    public void deliver() { latch.countDown(); }
+    // Completes once the input is delivered; handlers chain their work on it instead of waiting
+    public CompletableFuture<Void> getDelivery() { return this.delivery; }
+
+    // Both return false if the instance was already delivered or expired
+    public boolean deliver() { return delivery.complete(null); }
+    public boolean expire() { return delivery.completeExceptionally(new TimeoutException("ADEB instance expired before delivery")); }
+
+    public String getOrigin() { return this.origin; }
+    public long getCreated() { return this.created; }
 
     public int getEchos() { return this.echos; }
     public int getReadys() { return this.readys; }
@@ -33,5 +39,5 @@ public class ADEBInstance {
     public boolean hasSentReady() { return this.sentReady; }
     public void setHasSentReady() { this.sentReady = true; }
 
-    public boolean hasDelivered() { return latch.getCount() == 0; }
+    public boolean hasDelivered() { return delivery.isDone(); }
 }
@@ -1,29 +1,103 @@
 package pt.tecnico.bank;
 
-import java.util.HashMap;
+import com.google.protobuf.ByteString;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Broadcast instances by digest. An instance that is not delivered within ttl (its origin crashed or a
+// Byzantine replica made it up) is dropped, and its waiting request, if any, fails. A delivered instance
+// leaves the table at once, so a retransmitted request with the same digest is broadcast and applied
+// again rather than handed the first delivery, whose change its preconditions may have rejected. Echoes
+// and readies that arrive after the quorum start a new instance, which expires like any other.
+// Each other replica can keep at most maxPerOrigin undelivered instances, so none can fill the table;
+// instances started by this replica's own requests are not capped.
 public class ADEBInstanceManager {
 
-    private HashMap<String, ADEBInstance> instances;
+    private final ConcurrentHashMap<ByteString, ADEBInstance> instances;
+    private final ConcurrentHashMap<String, AtomicInteger> live;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final long ttl;
+    private final int maxPerOrigin;
+
+    public ADEBInstanceManager(long ttl, int maxPerOrigin) {
+        this.instances = new ConcurrentHashMap<>();
+        this.live = new ConcurrentHashMap<>();
+        this.ttl = ttl;
+        this.maxPerOrigin = maxPerOrigin;
 
-    public ADEBInstanceManager() {
-        this.instances = new HashMap<>();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "adeb-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(ttl / 2, 100);
+        sweeper.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
     }
 
-    public synchronized ADEBInstance getInstance(String input) {
-        if (instances.containsKey(input)){
-            return instances.get(input);
+    // The digest's instance, created if needed on behalf of origin (null for this replica's own
+    // requests). Returns null when origin already has maxPerOrigin instances alive.
+    public ADEBInstance getInstance(ByteString digest, String origin) {
+        ADEBInstance instance = instances.get(digest);
+        if (instance != null) {
+            return instance;
+        }
+
+        if (origin != null) {
+            AtomicInteger count = live.computeIfAbsent(origin, key -> new AtomicInteger());
+            if (count.incrementAndGet() > maxPerOrigin) {
+                count.decrementAndGet();
+                return null;
+            }
+        }
+
+        ADEBInstance created = new ADEBInstance(origin, System.currentTimeMillis());
+        instance = instances.putIfAbsent(digest, created);
+        if (instance != null) {
+            release(created);
+            return instance;
+        }
+        pending.incrementAndGet();
+        return created;
+    }
+
+    public void deliver(ByteString digest) {
+        ADEBInstance instance = instances.get(digest);
+        if (instance != null && instance.deliver()) {
+            instances.remove(digest, instance);
+            pending.decrementAndGet();
+            release(instance);
+        }
+    }
+
+    // Instances still waiting for a quorum
+    public int pending() {
+        return pending.get();
+    }
+
+    private void expire() {
+        long deadline = System.currentTimeMillis() - ttl;
+        int expired = 0;
+        for (Map.Entry<ByteString, ADEBInstance> entry : instances.entrySet()) {
+            ADEBInstance instance = entry.getValue();
+            if (instance.getCreated() < deadline && instances.remove(entry.getKey(), instance) && instance.expire()) {
+                pending.decrementAndGet();
+                release(instance);
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            System.out.println("Expired " + expired + " undelivered ADEB instances, " + pending() + " pending.");
         }
-        ADEBInstance adebInstance = new ADEBInstance();
-        instances.put(input, adebInstance);
-        return adebInstance;
     }
 
-    public synchronized void deliver(String input) {
-        if (instances.containsKey(input)) {
-            ADEBInstance instance = instances.get(input);
-            instance.deliver();
-            instances.remove(input);
+    private void release(ADEBInstance instance) {
+        if (instance.getOrigin() != null) {
+            live.get(instance.getOrigin()).decrementAndGet();
         }
     }
 }
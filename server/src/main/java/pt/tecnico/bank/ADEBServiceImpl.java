@@ -1,11 +1,14 @@
 package pt.tecnico.bank;
 
+import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
 import pt.tecnico.bank.grpc.*;
 
 import javax.swing.text.DefaultEditorKit;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Collections;
+import java.util.List;
 
 import static pt.tecnico.bank.ServerMain.*;
 
@@ -17,26 +20,62 @@ public class ADEBServiceImpl extends ADEBServiceGrpc.ADEBServiceImplBase {
     public ADEBServiceImpl(ADEB adeb, ADEBInstanceManager adebInstanceManager){
         this.adeb = adeb;
         this.adebInstanceManager = adebInstanceManager;
+        adeb.setLocal(this);
     }
 
     public void echo(EchoRequest request, StreamObserver<EchoResponse> responseObserver) {
+        receiveEcho(request);
+    }
+
+    public void ready(ReadyRequest request, StreamObserver<ReadyResponse> responseObserver) {
+        receiveReady(request);
+    }
+
+    public StreamObserver<ADEBMessage> exchange(StreamObserver<ADEBMessage> responseObserver) {
+        return new StreamObserver<ADEBMessage>() {
+            @Override
+            public void onNext(ADEBMessage message) {
+                if (message.hasEcho()) {
+                    receiveEcho(message.getEcho());
+                } else if (message.hasReady()) {
+                    receiveReady(message.getReady());
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) { }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
+    private void receiveEcho(EchoRequest request) {
 
         try {
             PublicKey otherServerPubKey = crypto.getPubKeyGrpc(request.getServerPubkey().toByteArray());
-            String finalString = request.getInput() + request.getNonce() + request.getServerName();
-
-            if (crypto.verifySignature(finalString, otherServerPubKey, request.getSignature().toByteArray())){
-                ADEBInstance instance = adebInstanceManager.getInstance(request.getInput());
-                synchronized (instance) {
-                    instance.addEcho();
-                    System.out.println("Received echo.");
-                    if (instance.getEchos() >= adeb.getQuorum()) {
-                        if (!instance.hasSentReady()) {
-                            instance.setHasSentReady();
-                            adeb.ready(request.getInput());
-                        }
-                    }
-                }
+            if (!adeb.getReplicaKeys().admit(request.getServerName(), otherServerPubKey)) {
+                System.out.println("Echo not from " + request.getServerName() + "'s configured key, dropped.");
+                return;
+            }
+            boolean signed;
+            List<ByteString> digests;
+
+            if (request.getDigestsCount() > 0) {
+                digests = request.getDigestsList();
+                signed = crypto.verifySignature(Payloads.echoBatchRequest(digests, request.getNonce(), request.getServerName()),
+                        otherServerPubKey, request.getSignature().toByteArray(), request.getSignatureVersion());
+            } else {
+                // from a replica that predates digests
+                digests = Collections.singletonList(ADEB.digest(request.getInput()));
+                signed = crypto.verifySignature(Payloads.echoRequest(request.getInput(), request.getNonce(), request.getServerName()),
+                        otherServerPubKey, request.getSignature().toByteArray(), request.getSignatureVersion());
+            }
+
+            if (signed){
+                digests.forEach(digest -> addEcho(digest, request.getServerName()));
             }
 
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
@@ -44,31 +83,74 @@ public class ADEBServiceImpl extends ADEBServiceGrpc.ADEBServiceImplBase {
         }
     }
 
-    public void ready(ReadyRequest request, StreamObserver<ReadyResponse> responseObserver) {
+    // origin is null for this replica's own messages
+    void addEcho(ByteString digest, String origin) {
+        ADEBInstance instance = adebInstanceManager.getInstance(digest, origin);
+        if (instance == null) {
+            System.out.println("Too many pending broadcasts from " + origin + ", echo dropped.");
+            return;
+        }
+        synchronized (instance) {
+            instance.addEcho();
+            System.out.println("Received echo.");
+            if (instance.getEchos() >= adeb.getQuorum()) {
+                if (!instance.hasSentReady()) {
+                    instance.setHasSentReady();
+                    adeb.ready(digest);
+                }
+            }
+        }
+    }
+
+    private void receiveReady(ReadyRequest request) {
 
         try {
             PublicKey otherServerPubKey = crypto.getPubKeyGrpc(request.getServerPubkey().toByteArray());
-            String finalString = request.getInput() + request.getNonce() + request.getServerName();
-
-            if (crypto.verifySignature(finalString, otherServerPubKey, request.getSignature().toByteArray())){
-                ADEBInstance instance = adebInstanceManager.getInstance(request.getInput());
-                synchronized (instance) {
-                    instance.addReady();
-                    System.out.println("Received ready.");
-                    if (instance.getReadys() >= adeb.getQuorum()) {
-                        if (!instance.hasSentReady()) {
-                            instance.setHasSentReady();
-                            adeb.ready(request.getInput());
-                        }
-                        if (!instance.hasDelivered()) {
-                            adebInstanceManager.deliver(request.getInput());
-                        }
-                    }
-                }
+            if (!adeb.getReplicaKeys().admit(request.getServerName(), otherServerPubKey)) {
+                System.out.println("Ready not from " + request.getServerName() + "'s configured key, dropped.");
+                return;
+            }
+            boolean signed;
+            List<ByteString> digests;
+
+            if (request.getDigestsCount() > 0) {
+                digests = request.getDigestsList();
+                signed = crypto.verifySignature(Payloads.readyBatchRequest(digests, request.getNonce(), request.getServerName()),
+                        otherServerPubKey, request.getSignature().toByteArray(), request.getSignatureVersion());
+            } else {
+                // from a replica that predates digests
+                digests = Collections.singletonList(ADEB.digest(request.getInput()));
+                signed = crypto.verifySignature(Payloads.readyRequest(request.getInput(), request.getNonce(), request.getServerName()),
+                        otherServerPubKey, request.getSignature().toByteArray(), request.getSignatureVersion());
+            }
+
+            if (signed){
+                digests.forEach(digest -> addReady(digest, request.getServerName()));
             }
 
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             System.out.println("Something wrong with the keys.");
         }
     }
+
+    void addReady(ByteString digest, String origin) {
+        ADEBInstance instance = adebInstanceManager.getInstance(digest, origin);
+        if (instance == null) {
+            System.out.println("Too many pending broadcasts from " + origin + ", ready dropped.");
+            return;
+        }
+        synchronized (instance) {
+            instance.addReady();
+            System.out.println("Received ready.");
+            if (instance.getReadys() >= adeb.getQuorum()) {
+                if (!instance.hasSentReady()) {
+                    instance.setHasSentReady();
+                    adeb.ready(digest);
+                }
+                if (!instance.hasDelivered()) {
+                    adebInstanceManager.deliver(digest);
+                }
+            }
+        }
+    }
 }
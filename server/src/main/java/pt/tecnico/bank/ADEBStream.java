@@ -0,0 +1,112 @@
+package pt.tecnico.bank;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import pt.tecnico.bank.grpc.ADEBMessage;
+import pt.tecnico.bank.grpc.ADEBServiceGrpc;
+
+import java.util.ArrayDeque;
+
+// The long-lived exchange stream to one replica. Messages are written while the stream is ready and
+// queued while HTTP/2 flow control holds them back, up to MAX_QUEUED, after which the oldest go. A
+// broken stream loses what it held, as a failed unary echo or ready did, and is reopened on a later
+// message once a backoff has passed; messages sent before that are dropped.
+public class ADEBStream {
+
+    private static final int MAX_QUEUED = 1024;
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 5000;
+
+    private final ADEBServiceGrpc.ADEBServiceStub stub;
+    private final String peer;
+    private final ArrayDeque<ADEBMessage> queue = new ArrayDeque<>();
+    private ClientCallStreamObserver<ADEBMessage> stream;
+    private long backoff = MIN_BACKOFF;
+    private long reopenAt;
+    private long dropped;
+
+    public ADEBStream(ADEBServiceGrpc.ADEBServiceStub stub, String peer) {
+        this.stub = stub;
+        this.peer = peer;
+    }
+
+    public synchronized void send(ADEBMessage message) {
+        if (stream == null) {
+            if (System.currentTimeMillis() < reopenAt) {
+                dropped++;
+                return;
+            }
+            open();
+            if (stream == null) {
+                // failed as it opened
+                dropped++;
+                return;
+            }
+        }
+        if (queue.size() == MAX_QUEUED) {
+            queue.poll();
+            dropped++;
+        }
+        queue.add(message);
+        drain();
+    }
+
+    private void open() {
+        stub.exchange(new ClientResponseObserver<ADEBMessage, ADEBMessage>() {
+            private ClientCallStreamObserver<ADEBMessage> call;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<ADEBMessage> call) {
+                this.call = call;
+                stream = call;
+                call.setOnReadyHandler(ADEBStream.this::onReady);
+            }
+
+            @Override
+            public void onNext(ADEBMessage message) { }
+
+            @Override
+            public void onError(Throwable throwable) {
+                closed(call, "ADEB stream to " + peer + " failed: " + throwable.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                closed(call, "ADEB stream to " + peer + " closed.");
+            }
+        });
+    }
+
+    private synchronized void onReady() {
+        if (stream != null && stream.isReady()) {
+            // the peer is reachable again
+            backoff = MIN_BACKOFF;
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (stream != null && stream.isReady() && !queue.isEmpty()) {
+            stream.onNext(queue.poll());
+        }
+    }
+
+    private synchronized void closed(ClientCallStreamObserver<ADEBMessage> call, String reason) {
+        if (stream == call) {
+            dropped += queue.size();
+            queue.clear();
+            System.out.println(reason + " Retrying in " + backoff + " ms, " + dropped + " messages dropped so far.");
+            stream = null;
+            reopenAt = System.currentTimeMillis() + backoff;
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        }
+    }
+
+    public synchronized void close() {
+        queue.clear();
+        if (stream != null) {
+            stream.onCompleted();
+            stream = null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package pt.tecnico.bank;
+
+import java.security.PublicKey;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serializes the requests that read and change the same accounts, while requests on other accounts
+// run in parallel. Accounts share a fixed number of lock stripes by the hash of their key. Requests that
+// touch two accounts take both stripes in index order, so they never deadlock.
+//
+//     try (AccountLocks.Held held = accountLocks.lock(sender, receiver)) { ... }
+public class AccountLocks {
+
+    private final ReentrantLock[] stripes;
+
+    public AccountLocks(int stripes) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public Held lock(PublicKey account) {
+        ReentrantLock stripe = stripe(account);
+        stripe.lock();
+        return new Held(stripe, null);
+    }
+
+    public Held lock(PublicKey first, PublicKey second) {
+        ReentrantLock a = stripe(first);
+        ReentrantLock b = stripe(second);
+        if (a == b) {
+            a.lock();
+            return new Held(a, null);
+        }
+        if (index(first) > index(second)) {
+            ReentrantLock swap = a;
+            a = b;
+            b = swap;
+        }
+        a.lock();
+        b.lock();
+        return new Held(b, a);
+    }
+
+    private ReentrantLock stripe(PublicKey account) {
+        return stripes[index(account)];
+    }
+
+    private int index(PublicKey account) {
+        return Math.floorMod(account.hashCode(), stripes.length);
+    }
+
+    public static class Held implements AutoCloseable {
+
+        private final ReentrantLock inner;
+        private final ReentrantLock outer;
+
+        private Held(ReentrantLock inner, ReentrantLock outer) {
+            this.inner = inner;
+            this.outer = outer;
+        }
+
+        @Override
+        public void close() {
+            inner.unlock();
+            if (outer != null) {
+                outer.unlock();
+            }
+        }
+    }
+}
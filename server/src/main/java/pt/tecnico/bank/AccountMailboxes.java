@@ -0,0 +1,52 @@
+package pt.tecnico.bank;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the mutations of each account one at a time, in the order they arrived, on a shared pool of
+// threads. An account's mailbox is the tail of a chain of futures: a new mutation runs after the
+// previous one, and the chain is dropped once it drains, so idle accounts cost nothing.
+public class AccountMailboxes {
+
+    public interface Mutation<T> {
+        T apply() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException;
+    }
+
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<PublicKey, CompletableFuture<Void>> mailboxes = new ConcurrentHashMap<>();
+
+    public AccountMailboxes(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Queues the mutation behind the account's earlier ones; the future completes with its result
+    public <T> CompletableFuture<T> submit(PublicKey account, Mutation<T> mutation) {
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Void> tail = mailboxes.compute(account, (key, previous) ->
+                (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous)
+                        .thenRunAsync(() -> run(mutation, result), executor));
+        tail.thenRun(() -> mailboxes.remove(account, tail));
+        return result;
+    }
+
+    static <T> void run(Mutation<T> mutation, CompletableFuture<T> result) {
+        try {
+            result.complete(mutation.apply());
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
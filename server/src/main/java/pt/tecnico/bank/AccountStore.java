@@ -0,0 +1,21 @@
+package pt.tecnico.bank;
+
+import pt.tecnico.bank.domain.Client;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.HashMap;
+
+// Durable copy of clientList. SaveHandler keeps it as snapshot + log, MappedAccountStore as fixed-size account slots.
+public interface AccountStore {
+
+    HashMap<PublicKey, Client> loadState() throws IOException, ClassNotFoundException;
+
+    // Called once clientList holds the loaded state, before the server accepts requests
+    void open() throws IOException;
+
+    void append(LogEntry entry) throws IOException;
+
+    // Like append, but returns before the entry is on disk; for records that may be lost in a crash
+    void appendLater(LogEntry entry) throws IOException;
+}
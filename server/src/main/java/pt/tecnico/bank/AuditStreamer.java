@@ -0,0 +1,104 @@
+package pt.tecnico.bank;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ServerCallStreamObserver;
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.grpc.AuditChunk;
+import pt.tecnico.bank.grpc.Transaction;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static pt.tecnico.bank.ServerMain.*;
+
+// Sends an account's history as signed AuditChunks, reading the next chunk from its history segment
+// only when the call can take more, so a slow auditor never makes the server hold the whole history
+public class AuditStreamer implements Runnable {
+
+    private static final int CHUNK_SIZE = 64;
+
+    private final ServerCallStreamObserver<AuditChunk> stream;
+    private final PublicKey publicKey;
+    private final Client client;
+    private final int nonce;
+    private final int rid;
+    private final int version;
+    // every chunk is read from the history as it was when the stream started
+    private final HistoryStore.View history;
+    private final int historySize;
+    private int cursor;
+    private int sequence;
+    private boolean done;
+
+    public AuditStreamer(ServerCallStreamObserver<AuditChunk> stream, PublicKey publicKey, Client client, int nonce, int rid, int version) {
+        this.stream = stream;
+        this.publicKey = publicKey;
+        this.client = client;
+        this.nonce = nonce;
+        this.rid = rid;
+        this.version = version;
+        this.history = historyStore.view(client);
+        this.historySize = history.getSize();
+    }
+
+    // Runs as the call's onReady handler, which gRPC never runs concurrently with itself
+    public void run() {
+        while (!done && stream.isReady() && !stream.isCancelled()) {
+
+            List<Transaction> transactions = new ArrayList<>(CHUNK_SIZE);
+            try {
+                cursor = historyStore.read(publicKey, client, history, cursor, CHUNK_SIZE, transactions::add);
+            } catch (IOException e) {
+                System.out.println("Error while reading history: " + e.getMessage());
+                finish(Collections.emptyList(), "Something wrong with the history!");
+                return;
+            }
+
+            if (transactions.isEmpty() || cursor >= historySize) {
+                finish(transactions, "valid");
+            } else {
+                stream.onNext(chunk(transactions, sequence++, false, historySize, "valid"));
+            }
+        }
+    }
+
+    private void finish(List<Transaction> transactions, String message) {
+        stream.onNext(chunk(transactions, sequence++, true, historySize, message));
+        stream.onCompleted();
+        done = true;
+    }
+
+    // A reply made of a single final chunk, for requests refused before any history is read
+    public static AuditChunk refusal(int nonce, int rid, int version, String message) {
+        return chunk(Collections.emptyList(), nonce, rid, version, 0, true, 0, message);
+    }
+
+    private AuditChunk chunk(List<Transaction> transactions, int sequence, boolean last, int historySize, String message) {
+        return chunk(transactions, nonce, rid, version, sequence, last, historySize, message);
+    }
+
+    private static AuditChunk chunk(List<Transaction> transactions, int nonce, int rid, int version,
+                                    int sequence, boolean last, int historySize, String message) {
+
+        int nonce1 = nonce + 1;
+
+        byte[] signature = crypto.getSignature(Payloads.auditChunk(keyPair.getPublic(), transactions, nonce1, rid, sequence,
+                last, historySize, message), keyPair.getPrivate(), version);
+
+        return AuditChunk.newBuilder()
+                .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
+                .addAllTransactions(transactions)
+                .setNonce(nonce1)
+                .setRid(rid)
+                .setSequence(sequence)
+                .setLast(last)
+                .setHistorySize(historySize)
+                .setMessage(message)
+                .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
+                .build();
+    }
+}
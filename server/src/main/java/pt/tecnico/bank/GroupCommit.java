@@ -0,0 +1,105 @@
+package pt.tecnico.bank;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Collects the log records of concurrent requests and hands them to the store in batches, on one
+// thread, so a whole batch costs a single fsync. A record waits at most window milliseconds for
+// others to join it.
+public class GroupCommit {
+
+    public interface Writer {
+        // Writes and forces the batch, or throws and leaves the file as it was
+        void write(List<byte[]> records) throws IOException;
+    }
+
+    private final LinkedBlockingQueue<PendingRecord> queue;
+    private final long window;
+    private final Writer writer;
+
+    public GroupCommit(long window, Writer writer) {
+        this.queue = new LinkedBlockingQueue<>();
+        this.window = window;
+        this.writer = writer;
+    }
+
+    public void start() {
+        Thread committer = new Thread(this::run, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // Blocks until the record, together with whatever else was queued in the same window, is on disk
+    public void append(byte[] record) throws IOException {
+
+        PendingRecord pending = new PendingRecord(record);
+        queue.add(pending);
+
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for log commit", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Log commit failed", e.getCause());
+        }
+    }
+
+    public void appendLater(byte[] record) {
+        queue.add(new PendingRecord(record));
+    }
+
+    private void run() {
+
+        List<PendingRecord> batch = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    PendingRecord next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                batch.forEach(record -> record.done.completeExceptionally(e));
+                return;
+            }
+
+            for (PendingRecord record : batch) {
+                records.add(record.bytes);
+            }
+            try {
+                writer.write(records);
+                batch.forEach(record -> record.done.complete(null));
+            } catch (Throwable e) {
+                // whatever went wrong, the batch's callers must not wait on it forever, nor later ones on this thread
+                System.out.println("Error while writing to the log: " + e);
+                batch.forEach(record -> record.done.completeExceptionally(e));
+            }
+            batch.clear();
+            records.clear();
+        }
+    }
+
+    private static class PendingRecord {
+        final byte[] bytes;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingRecord(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package pt.tecnico.bank;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.domain.Transactions;
+import pt.tecnico.bank.grpc.Transaction;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Keeps every account's transaction history on disk instead of on the heap, as an append-only file of
+// framed Transaction messages per account: history/<account>-<generation>.seg. A Client only holds the
+// generation, record count and byte length its log records committed; whatever a segment holds past
+// that length was never acknowledged and is cut off on start. Rewriting a history starts a new generation.
+public class HistoryStore {
+
+    private static final int OPEN_SEGMENTS = 64;
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int INDEX_INTERVAL = 128;
+
+    private final Path directory;
+    private final LinkedHashMap<Path, FileChannel> channels;
+    private final Set<FileChannel> dirty;
+    private final Map<Path, List<Long>> indexes;
+    // not the monitor: requests on virtual threads wait here while sync() forces the segments, and a
+    // monitor would pin their carrier threads for the whole fsync
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public HistoryStore(String serverName) {
+        this.directory = Paths.get(System.getProperty("user.dir"), serverName, "history");
+        this.channels = new LinkedHashMap<>(16, 0.75f, true);
+        this.dirty = new HashSet<>();
+        this.indexes = new HashMap<>();
+    }
+
+    // Moves histories still held inline (older snapshots and logs) into segments, drops uncommitted
+    // tails and deletes segments no account points to anymore
+    public void open(Map<PublicKey, Client> clients) throws IOException {
+        lock.lock();
+        try {
+            Files.createDirectories(directory);
+
+            int migrated = 0;
+            Set<Path> live = new HashSet<>();
+
+            for (Map.Entry<PublicKey, Client> entry : clients.entrySet()) {
+                Client client = entry.getValue();
+
+                if (client.getHistory() != null) {
+                    List<Transaction> history = new ArrayList<>(client.getHistory().size());
+                    for (Transactions transaction : client.getHistory()) {
+                        history.add(toTransaction(transaction));
+                    }
+                    replace(entry.getKey(), client, history);
+                    client.setHistory(null);
+                    migrated++;
+                }
+
+                if (client.getHistoryGeneration() > 0) {
+                    Path path = segmentPath(entry.getKey(), client.getHistoryGeneration());
+                    long size = Files.exists(path) ? Files.size(path) : 0;
+                    if (size < client.getHistoryBytes()) {
+                        throw new IOException("History segment " + path.getFileName() + " is shorter than its committed length");
+                    }
+                    if (size > client.getHistoryBytes()) {
+                        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                            channel.truncate(client.getHistoryBytes());
+                            channel.force(false);
+                        }
+                    }
+                    live.add(path);
+                }
+            }
+
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path path : (Iterable<Path>) files::iterator) {
+                    if (!live.contains(path)) {
+                        Files.delete(path);
+                    }
+                }
+            }
+
+            if (migrated > 0) {
+                System.out.println("Moved the history of " + migrated + " accounts to history segments.");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes the transaction after the committed end of the account's segment. It reaches the disk on
+    // the next sync(), which the log calls before forcing the record that commits it.
+    public void append(PublicKey publicKey, Client client, Transaction transaction) throws IOException {
+        lock.lock();
+        try {
+            int generation = Math.max(1, client.getHistoryGeneration());
+            Path path = segmentPath(publicKey, generation);
+            FileChannel channel = channel(path);
+
+            ByteBuffer framed = LogEntry.frame(Collections.singletonList(transaction.toByteArray()));
+            long length = framed.remaining();
+            long position = client.getHistoryBytes();
+            while (framed.hasRemaining()) {
+                position += channel.write(framed, position);
+            }
+            dirty.add(channel);
+
+            List<Long> index = indexes.get(path);
+            if (index != null && client.getHistorySize() % INDEX_INTERVAL == 0) {
+                index.add(client.getHistoryBytes());
+            }
+
+            client.setHistorySegment(generation, client.getHistorySize() + 1, client.getHistoryBytes() + length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes a whole new generation of the account's history. The previous one stays on disk until
+    // the next start, in case the record switching to the new one never commits.
+    public void replace(PublicKey publicKey, Client client, List<Transaction> history) throws IOException {
+        lock.lock();
+        try {
+            List<byte[]> records = new ArrayList<>(history.size());
+            List<Long> index = new ArrayList<>();
+            long length = 0;
+            for (Transaction transaction : history) {
+                byte[] record = transaction.toByteArray();
+                if (records.size() % INDEX_INTERVAL == 0) {
+                    index.add(length);
+                }
+                records.add(record);
+                length += LogEntry.RECORD_HEADER + record.length;
+            }
+            ByteBuffer framed = LogEntry.frame(records);
+
+            int generation = client.getHistoryGeneration() + 1;
+            Path path = segmentPath(publicKey, generation);
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (framed.hasRemaining()) {
+                    channel.write(framed);
+                }
+                channel.force(false);
+            }
+
+            if (client.getHistoryGeneration() > 0) {
+                Path previousPath = segmentPath(publicKey, client.getHistoryGeneration());
+                FileChannel previous = channels.remove(previousPath);
+                if (previous != null) {
+                    close(previous);
+                }
+                indexes.remove(previousPath);
+            }
+            indexes.put(path, index);
+
+            client.setHistorySegment(generation, history.size(), length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            for (FileChannel channel : dirty) {
+                channel.force(false);
+            }
+            dirty.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The committed history as it is now
+    public View view(Client client) {
+        lock.lock();
+        try {
+            return new View(client.getHistoryGeneration(), client.getHistorySize());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Streams up to limit committed transactions starting with the one at index from, and returns the
+    // index right after the last one read
+    public int read(PublicKey publicKey, Client client, int from, int limit, Consumer<Transaction> consumer) throws IOException {
+        return read(publicKey, client, view(client), from, limit, consumer);
+    }
+
+    // Same, against a view taken earlier, so that a history read in several steps stays the one the
+    // view saw even if transactions are appended or the history is replaced in between
+    public int read(PublicKey publicKey, Client client, View view, int from, int limit, Consumer<Transaction> consumer) throws IOException {
+
+        int size = view.size;
+        if (view.generation == 0 || from >= size) {
+            return from;
+        }
+
+        Path path = segmentPath(publicKey, view.generation);
+        long position = 0;
+        int next = 0;
+
+        lock.lock();
+        try {
+            // a generation that was replaced has no index anymore and is read from its start
+            if (from >= INDEX_INTERVAL && view.generation == client.getHistoryGeneration()) {
+                position = index(path, client).get(from / INDEX_INTERVAL);
+                next = from - from % INDEX_INTERVAL;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        int last = (int) Math.min(size, (long) from + limit);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(position)), READ_BUFFER))) {
+
+            for (; next < last; next++) {
+                int length = in.readInt();
+                long checksum = in.readLong();
+                if (next < from) {
+                    skip(in, length);
+                    continue;
+                }
+
+                byte[] record = new byte[length];
+                in.readFully(record);
+
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    throw new IOException("Corrupted record " + next + " in history segment " + path.getFileName());
+                }
+
+                consumer.accept(Transaction.parseFrom(record));
+            }
+        }
+        return next;
+    }
+
+    // A generation and how many of its records were committed
+    public static class View {
+        private final int generation;
+        private final int size;
+
+        View(int generation, int size) {
+            this.generation = generation;
+            this.size = size;
+        }
+
+        public int getSize() { return size; }
+    }
+
+    static Transaction toTransaction(Transactions transaction) {
+        return Transaction.newBuilder()
+                .setSourceUsername(transaction.getSenderUsername())
+                .setDestUsername(transaction.getDestUsername())
+                .setAmount(transaction.getValue())
+                .setSource(ByteString.copyFrom(transaction.getSourceKey().getEncoded()))
+                .setDestination(ByteString.copyFrom(transaction.getDestKey().getEncoded()))
+                .setWid(transaction.getWid())
+                .setSignature(ByteString.copyFrom(transaction.getSignature()))
+                .build();
+    }
+
+    // Offsets of every INDEX_INTERVAL-th record of a segment, built the first time it is read from
+    private List<Long> index(Path path, Client client) throws IOException {
+
+        List<Long> index = indexes.get(path);
+        if (index != null) {
+            return index;
+        }
+
+        index = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), READ_BUFFER))) {
+            long position = 0;
+            for (int record = 0; record < client.getHistorySize(); record++) {
+                if (record % INDEX_INTERVAL == 0) {
+                    index.add(position);
+                }
+                int length = in.readInt();
+                skip(in, Long.BYTES + length);
+                position += LogEntry.RECORD_HEADER + length;
+            }
+        }
+
+        indexes.put(path, index);
+        return index;
+    }
+
+    private static void skip(DataInputStream in, int bytes) throws IOException {
+        if (in.skipBytes(bytes) < bytes) {
+            throw new EOFException("History segment ends inside a record");
+        }
+    }
+
+    private FileChannel channel(Path path) throws IOException {
+
+        FileChannel channel = channels.get(path);
+        if (channel != null) {
+            return channel;
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channels.put(path, channel);
+
+        if (channels.size() > OPEN_SEGMENTS) {
+            Iterator<FileChannel> eldest = channels.values().iterator();
+            close(eldest.next());
+            eldest.remove();
+        }
+        return channel;
+    }
+
+    private void close(FileChannel channel) throws IOException {
+        if (dirty.remove(channel)) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+
+    private Path segmentPath(PublicKey publicKey, int generation) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+            StringBuilder account = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                account.append(String.format("%02x", digest[i]));
+            }
+            return directory.resolve(account + "-" + generation + ".seg");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
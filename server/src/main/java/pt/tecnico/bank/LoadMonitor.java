@@ -0,0 +1,128 @@
+package pt.tecnico.bank;
+
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import pt.tecnico.bank.domain.Client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+// Picks the proof of work difficulty of each new challenge. Under normal load a client asking for at
+// most bank.powAllowance challenges per second gets bank.powMinDifficulty, which costs next to nothing.
+// Every doubling of a client's rate over the allowance adds two bits (4x the work), and while the
+// replica is saturated (too many calls in flight or the CPU busy) everyone pays
+// SATURATED_DIFFICULTY more bits and the clients over the allowance twice as many.
+public class LoadMonitor implements ServerInterceptor {
+
+    private static final long WINDOW_MILLIS = 1000;
+    private static final int SATURATED_DIFFICULTY = 4;
+
+    private final int minDifficulty;
+    private final int maxDifficulty;
+    private final int allowance;
+    private final int busyCalls;
+    // the system load per processor
+    private final DoubleSupplier cpu;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // challenges asked for by each client in the current and the previous window
+    private Map<PublicKey, Integer> current = new HashMap<>();
+    private Map<PublicKey, Integer> previous = new HashMap<>();
+    private long windowStart = System.currentTimeMillis();
+
+    public LoadMonitor(int minDifficulty, int maxDifficulty, int allowance, int busyCalls) {
+        this(minDifficulty, maxDifficulty, allowance, busyCalls, systemLoad());
+    }
+
+    LoadMonitor(int minDifficulty, int maxDifficulty, int allowance, int busyCalls, DoubleSupplier cpu) {
+        this.cpu = cpu;
+        this.minDifficulty = minDifficulty;
+        this.maxDifficulty = Math.min(maxDifficulty, Crypto.MAX_POW_DIFFICULTY);
+        this.allowance = allowance;
+        this.busyCalls = busyCalls;
+    }
+
+    // Counts a new challenge for the client and returns the difficulty it must be solved with
+    public int challengeDifficulty(PublicKey publicKey) {
+
+        double excess = rate(publicKey) / allowance;
+        int clientBits = excess > 1 ? 2 * (int) Math.ceil(Math.log(excess) / Math.log(2)) : 0;
+
+        int difficulty = minDifficulty + clientBits;
+        if (load() >= 1) {
+            difficulty += SATURATED_DIFFICULTY + clientBits;
+        }
+        return Math.min(difficulty, maxDifficulty);
+    }
+
+    // Difficulty a proof must have for the client's current challenge. Difficulties are not
+    // persisted, so challenges issued before a restart need the minimum.
+    public int requiredDifficulty(Client client) {
+        return Math.max(client.getChallengeDifficulty(), minDifficulty);
+    }
+
+    // Calls in flight over bank.powBusyCalls, or the system load per processor, whichever is higher;
+    // 1 or more means saturated
+    public double load() {
+        double calls = inFlight.get() / (double) busyCalls;
+        return Math.max(calls, cpu.getAsDouble());
+    }
+
+    private static DoubleSupplier systemLoad() {
+        OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+        return () -> system.getSystemLoadAverage() / system.getAvailableProcessors();
+    }
+
+    // Challenges asked for in the last second: the current window's plus the part of the previous
+    // one still inside the last second
+    private synchronized double rate(PublicKey publicKey) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_MILLIS) {
+            previous = elapsed >= 2 * WINDOW_MILLIS ? new HashMap<>() : current;
+            current = new HashMap<>();
+            windowStart = now - elapsed % WINDOW_MILLIS;
+            elapsed = now - windowStart;
+        }
+
+        int count = current.merge(publicKey, 1, Integer::sum);
+        return count + previous.getOrDefault(publicKey, 0) * (1 - elapsed / (double) WINDOW_MILLIS);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        ServerCall.Listener<ReqT> listener = next.startCall(call, headers);
+        inFlight.incrementAndGet();
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            private boolean done;
+
+            @Override
+            public void onComplete() {
+                finish();
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                finish();
+                super.onCancel();
+            }
+
+            private void finish() {
+                if (!done) {
+                    done = true;
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,315 @@
+package pt.tecnico.bank;
+
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.domain.Transactions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static pt.tecnico.bank.ServerMain.crypto;
+
+// A single write-ahead log record: the list of changes one request made to clientList
+public class LogEntry {
+
+    static final byte OPEN_ACCOUNT = 1;
+    static final byte SET_STATE = 2;
+    static final byte ADD_PENDING = 3;
+    static final byte REMOVE_PENDING = 4;
+    static final byte SET_PENDING = 5;
+    // histories are written to HistoryStore segments now; these two only appear in older logs
+    static final byte ADD_HISTORY = 6;
+    static final byte SET_HISTORY = 7;
+    static final byte ADD_EVENT = 8;
+    static final byte SET_HISTORY_SEGMENT = 9;
+
+    // length + crc32 in front of every record on disk
+    static final int RECORD_HEADER = Integer.BYTES + Long.BYTES;
+
+    // Receives the changes of a record, in the order they were logged
+    public interface Visitor {
+        void openAccount(PublicKey publicKey, String username, byte[] pairSign) throws IOException;
+        void setState(PublicKey publicKey, int balance, int wid, byte[] pairSign) throws IOException;
+        void addPending(PublicKey publicKey, Transactions transaction) throws IOException;
+        void removePending(PublicKey publicKey, int index) throws IOException;
+        void setPending(PublicKey publicKey, List<Transactions> pending) throws IOException;
+        void addHistory(PublicKey publicKey, Transactions transaction) throws IOException;
+        void setHistory(PublicKey publicKey, List<Transactions> history) throws IOException;
+        void addEvent(PublicKey publicKey, int nonce, int rid) throws IOException;
+        void setHistorySegment(PublicKey publicKey, int generation, int size, long bytes) throws IOException;
+    }
+
+    private final ByteArrayOutputStream byteOut;
+    private final DataOutputStream out;
+
+    public LogEntry() {
+        this.byteOut = new ByteArrayOutputStream();
+        this.out = new DataOutputStream(byteOut);
+    }
+
+    public LogEntry openAccount(PublicKey publicKey, String username, byte[] pairSign) throws IOException {
+        out.writeByte(OPEN_ACCOUNT);
+        writeKey(publicKey);
+        out.writeUTF(username);
+        writeBytes(pairSign);
+        return this;
+    }
+
+    public LogEntry setState(PublicKey publicKey, int balance, int wid, byte[] pairSign) throws IOException {
+        out.writeByte(SET_STATE);
+        writeKey(publicKey);
+        out.writeInt(balance);
+        out.writeInt(wid);
+        writeBytes(pairSign);
+        return this;
+    }
+
+    public LogEntry addPending(PublicKey publicKey, Transactions transaction) throws IOException {
+        out.writeByte(ADD_PENDING);
+        writeKey(publicKey);
+        writeTransaction(transaction);
+        return this;
+    }
+
+    public LogEntry removePending(PublicKey publicKey, int index) throws IOException {
+        out.writeByte(REMOVE_PENDING);
+        writeKey(publicKey);
+        out.writeInt(index);
+        return this;
+    }
+
+    public LogEntry setPending(PublicKey publicKey, List<Transactions> pending) throws IOException {
+        out.writeByte(SET_PENDING);
+        writeKey(publicKey);
+        writeTransactions(pending);
+        return this;
+    }
+
+    public LogEntry addEvent(PublicKey publicKey, int nonce, int rid) throws IOException {
+        out.writeByte(ADD_EVENT);
+        writeKey(publicKey);
+        out.writeInt(nonce);
+        out.writeInt(rid);
+        return this;
+    }
+
+    public LogEntry setHistorySegment(PublicKey publicKey, int generation, int size, long bytes) throws IOException {
+        out.writeByte(SET_HISTORY_SEGMENT);
+        writeKey(publicKey);
+        out.writeInt(generation);
+        out.writeInt(size);
+        out.writeLong(bytes);
+        return this;
+    }
+
+    public byte[] toByteArray() throws IOException {
+        out.flush();
+        return byteOut.toByteArray();
+    }
+
+    public static ByteBuffer frame(List<byte[]> records) {
+
+        int size = 0;
+        for (byte[] record : records) {
+            size += RECORD_HEADER + record.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            buffer.putInt(record.length).putLong(crc.getValue()).put(record);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Returns the records of a log file up to the first torn or corrupted one
+    public static List<byte[]> readFile(Path path) throws IOException {
+
+        List<byte[]> records = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return records;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int length = buffer.getInt();
+            long checksum = buffer.getLong();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            byte[] record = new byte[length];
+            buffer.get(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            records.add(record);
+        }
+
+        return records;
+    }
+
+    public static void apply(byte[] record, Map<PublicKey, Client> clients) throws IOException {
+        read(record, new Visitor() {
+            public void openAccount(PublicKey publicKey, String username, byte[] pairSign) {
+                clients.put(publicKey, new Client(username, pairSign));
+            }
+            public void setState(PublicKey publicKey, int balance, int wid, byte[] pairSign) throws IOException {
+                Client client = get(publicKey);
+                client.setBalance(balance);
+                client.setWid(wid);
+                client.setPairSign(pairSign);
+            }
+            public void addPending(PublicKey publicKey, Transactions transaction) throws IOException {
+                get(publicKey).addPending(transaction);
+            }
+            public void removePending(PublicKey publicKey, int index) throws IOException {
+                get(publicKey).removePending(index);
+            }
+            public void setPending(PublicKey publicKey, List<Transactions> pending) throws IOException {
+                get(publicKey).setPending(pending);
+            }
+            public void addHistory(PublicKey publicKey, Transactions transaction) throws IOException {
+                get(publicKey).addHistory(transaction);
+            }
+            public void setHistory(PublicKey publicKey, List<Transactions> history) throws IOException {
+                get(publicKey).setHistory(history);
+            }
+            public void addEvent(PublicKey publicKey, int nonce, int rid) throws IOException {
+                Client client = get(publicKey);
+                client.addEvent(nonce);
+                client.setRid(rid);
+            }
+            public void setHistorySegment(PublicKey publicKey, int generation, int size, long bytes) throws IOException {
+                get(publicKey).setHistorySegment(generation, size, bytes);
+            }
+
+            private Client get(PublicKey publicKey) throws IOException {
+                Client client = clients.get(publicKey);
+                if (client == null) {
+                    throw new IOException("Log record for an unknown account");
+                }
+                return client;
+            }
+        });
+    }
+
+    public static void read(byte[] record, Visitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            PublicKey publicKey = readKey(in);
+
+            switch (type) {
+                case OPEN_ACCOUNT:
+                    String username = in.readUTF();
+                    visitor.openAccount(publicKey, username, readBytes(in));
+                    break;
+                case SET_STATE:
+                    int balance = in.readInt();
+                    int wid = in.readInt();
+                    visitor.setState(publicKey, balance, wid, readBytes(in));
+                    break;
+                case ADD_PENDING:
+                    visitor.addPending(publicKey, readTransaction(in));
+                    break;
+                case REMOVE_PENDING:
+                    visitor.removePending(publicKey, in.readInt());
+                    break;
+                case SET_PENDING:
+                    visitor.setPending(publicKey, readTransactions(in));
+                    break;
+                case ADD_HISTORY:
+                    visitor.addHistory(publicKey, readTransaction(in));
+                    break;
+                case SET_HISTORY:
+                    visitor.setHistory(publicKey, readTransactions(in));
+                    break;
+                case ADD_EVENT:
+                    int nonce = in.readInt();
+                    visitor.addEvent(publicKey, nonce, in.readInt());
+                    break;
+                case SET_HISTORY_SEGMENT:
+                    int generation = in.readInt();
+                    int size = in.readInt();
+                    visitor.setHistorySegment(publicKey, generation, size, in.readLong());
+                    break;
+                default:
+                    throw new IOException("Unknown log record type " + type);
+            }
+        }
+    }
+
+    private void writeKey(PublicKey publicKey) throws IOException {
+        writeBytes(publicKey.getEncoded());
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeTransaction(Transactions transaction) throws IOException {
+        out.writeUTF(transaction.getSenderUsername());
+        out.writeUTF(transaction.getDestUsername());
+        out.writeInt(transaction.getValue());
+        writeKey(transaction.getSourceKey());
+        writeKey(transaction.getDestKey());
+        out.writeInt(transaction.getWid());
+        writeBytes(transaction.getSignature());
+    }
+
+    private void writeTransactions(List<Transactions> transactions) throws IOException {
+        out.writeInt(transactions.size());
+        for (Transactions transaction : transactions) {
+            writeTransaction(transaction);
+        }
+    }
+
+    private static PublicKey readKey(DataInputStream in) throws IOException {
+        try {
+            return crypto.getPubKeyGrpc(readBytes(in));
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IOException("Corrupted public key in log record", e);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Transactions readTransaction(DataInputStream in) throws IOException {
+        String senderUsername = in.readUTF();
+        String destUsername = in.readUTF();
+        int value = in.readInt();
+        PublicKey sourceKey = readKey(in);
+        PublicKey destKey = readKey(in);
+        int wid = in.readInt();
+        return new Transactions(senderUsername, destUsername, value, sourceKey, destKey, wid, readBytes(in));
+    }
+
+    private static List<Transactions> readTransactions(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<Transactions> transactions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            transactions.add(readTransaction(in));
+        }
+        return transactions;
+    }
+}
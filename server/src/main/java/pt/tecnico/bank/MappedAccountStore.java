@@ -0,0 +1,364 @@
+package pt.tecnico.bank;
+
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.domain.Transactions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static pt.tecnico.bank.ServerMain.clientList;
+import static pt.tecnico.bank.ServerMain.crypto;
+import static pt.tecnico.bank.ServerMain.historyStore;
+
+// Keeps every account's hot fields (balance, wid, rid, pair signature) in its own page-sized
+// slot of a memory-mapped file, accounts.dat, so an update only dirties that account's page and the OS
+// decides when to write it back. Pending, history segment pointers and seen nonces live in lists.dat, an append-only file
+// of log records that is group-committed before the slots are touched, and compacted on every start and whenever it
+// has doubled since the last compaction.
+public class MappedAccountStore implements AccountStore, LogEntry.Visitor {
+
+    private static final int MAGIC = 0x424b4d41;
+    private static final int VERSION = 1;
+    private static final int SLOT_SIZE = 4096;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long COMPACT_MIN = 16 << 20;
+
+    private static final int KEY_MAX = 600;
+    private static final int USERNAME_MAX = 128;
+    private static final int PAIR_SIGN_MAX = 512;
+    private static final int CHALLENGE_MAX = 900;
+
+    // slot 0 is the file header: magic, version, number of accounts
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = HEADER_MAGIC + Integer.BYTES;
+    private static final int HEADER_COUNT = HEADER_VERSION + Integer.BYTES;
+
+    // account slot layout
+    private static final int BALANCE = 0;
+    private static final int WID = BALANCE + Integer.BYTES;
+    private static final int RID = WID + Integer.BYTES;
+    private static final int KEY = RID + Integer.BYTES;
+    private static final int USERNAME = KEY + Short.BYTES + KEY_MAX;
+    private static final int PAIR_SIGN = USERNAME + Short.BYTES + USERNAME_MAX;
+    // left empty, kept so slots written by earlier versions keep their layout
+    private static final int CHALLENGE = PAIR_SIGN + Short.BYTES + PAIR_SIGN_MAX;
+
+    private final String serverName;
+    private final long commitWindow;
+    private final Map<PublicKey, Integer> slots;
+    private final GroupCommit groupCommit;
+    private FileChannel accounts;
+    private FileChannel lists;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private boolean imported;
+    private long compactAt;
+    // set when a failed batch could not be cut off lists.dat; every later write fails instead
+    private IOException broken;
+    // guards the slots between request threads and the group commit thread, which forces the mapping
+    // while holding it; a lock so that waiting virtual threads don't pin their carriers
+    private final ReentrantLock slotLock = new ReentrantLock();
+
+    public MappedAccountStore(String serverName, long commitWindow) {
+        this.serverName = serverName;
+        this.commitWindow = commitWindow;
+        this.slots = new HashMap<>();
+        this.groupCommit = new GroupCommit(commitWindow, this::writeBatch);
+    }
+
+    public HashMap<PublicKey, Client> loadState() throws IOException, ClassNotFoundException {
+
+        this.accounts = FileChannel.open(accountsPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map();
+
+        if (buffer.getInt(HEADER_MAGIC) == 0) {
+            // first start with this engine: take over whatever db.txt and the log hold
+            this.imported = true;
+            return new SaveHandler(serverName, commitWindow, 0).loadState();
+        }
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) > VERSION) {
+            throw new IOException("accounts.dat is not a supported account store");
+        }
+
+        HashMap<PublicKey, Client> clients = new HashMap<>();
+        int stored = buffer.getInt(HEADER_COUNT);
+
+        for (int slot = 0; slot < stored; slot++) {
+            int base = offset(slot);
+            PublicKey publicKey;
+            try {
+                publicKey = crypto.getPubKeyGrpc(readField(base + KEY));
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                throw new IOException("Corrupted public key in account slot " + slot, e);
+            }
+
+            Client client = new Client(new String(readField(base + USERNAME), StandardCharsets.UTF_8), readField(base + PAIR_SIGN));
+            client.setBalance(buffer.getInt(base + BALANCE));
+            client.setWid(buffer.getInt(base + WID));
+            client.setRid(buffer.getInt(base + RID));
+
+            clients.put(publicKey, client);
+            slots.put(publicKey, slot);
+        }
+        this.count = stored;
+
+        // lists.dat also repeats the hot fields of every change since the last start, which
+        // covers slot pages the OS had not written back yet
+        for (byte[] record : LogEntry.readFile(listsPath())) {
+            LogEntry.apply(record, clients);
+        }
+
+        return clients;
+    }
+
+    public void open() throws IOException {
+
+        for (Map.Entry<PublicKey, Client> entry : clientList.entrySet()) {
+            writeSlot(entry.getKey(), entry.getValue());
+        }
+        buffer.putInt(HEADER_COUNT, count);
+        buffer.force();
+
+        compactLists(clientList);
+
+        if (this.imported) {
+            // only now is the store complete enough to be used on the next start
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.force();
+        }
+
+        openLists();
+        groupCommit.start();
+    }
+
+    // Blocks until the entry, together with whatever else was queued in the same window, is on disk
+    public void append(LogEntry entry) throws IOException {
+        groupCommit.append(entry.toByteArray());
+    }
+
+    public void appendLater(LogEntry entry) throws IOException {
+        groupCommit.appendLater(entry.toByteArray());
+    }
+
+    /* ---------- LogEntry.Visitor: only hot fields touch the slots ---------- */
+
+    public void openAccount(PublicKey publicKey, String username, byte[] pairSign) throws IOException {
+        writeSlot(publicKey, new Client(username, pairSign));
+        buffer.putInt(HEADER_COUNT, count);
+    }
+
+    public void setState(PublicKey publicKey, int balance, int wid, byte[] pairSign) throws IOException {
+        int base = offset(slot(publicKey));
+        buffer.putInt(base + BALANCE, balance);
+        buffer.putInt(base + WID, wid);
+        writeField(base + PAIR_SIGN, pairSign, PAIR_SIGN_MAX);
+    }
+
+    public void addEvent(PublicKey publicKey, int nonce, int rid) throws IOException {
+        buffer.putInt(offset(slot(publicKey)) + RID, rid);
+    }
+
+    public void addPending(PublicKey publicKey, Transactions transaction) { }
+
+    public void removePending(PublicKey publicKey, int index) { }
+
+    public void setPending(PublicKey publicKey, List<Transactions> pending) { }
+
+    public void addHistory(PublicKey publicKey, Transactions transaction) { }
+
+    public void setHistory(PublicKey publicKey, List<Transactions> history) { }
+
+    public void setHistorySegment(PublicKey publicKey, int generation, int size, long bytes) { }
+
+    /* ---------- Files ---------- */
+
+    // Runs on the group commit thread, the only one that writes lists.dat
+    private void writeBatch(List<byte[]> records) throws IOException {
+
+        if (broken != null) {
+            throw new IOException("lists.dat is unusable since a failed write could not be undone", broken);
+        }
+
+        ByteBuffer framed = LogEntry.frame(records);
+        long start = lists.position();
+        try {
+            while (framed.hasRemaining()) {
+                lists.write(framed);
+            }
+            historyStore.sync();
+            lists.force(false);
+        } catch (IOException e) {
+            // replay stops at the first torn record, so anything appended after it would be lost on restart
+            try {
+                lists.truncate(start);
+                lists.position(start);
+                lists.force(true);
+            } catch (IOException rollback) {
+                broken = rollback;
+                e.addSuppressed(rollback);
+            }
+            throw e;
+        }
+
+        slotLock.lock();
+        try {
+            for (byte[] record : records) {
+                LogEntry.read(record, this);
+            }
+        } finally {
+            slotLock.unlock();
+        }
+
+        if (lists.position() >= compactAt) {
+            try {
+                compactRunning();
+            } catch (IOException e) {
+                // the batch is committed either way
+                System.out.println("Compacting lists.dat failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Folds lists.dat into one record per account. The lists are rebuilt from the file itself, since
+    // clientList may already hold changes that are still waiting in the queue.
+    private void compactRunning() throws IOException {
+
+        long before = lists.size();
+        // if this fails, try again once the file has grown as much again
+        compactAt = 2 * before;
+
+        Map<PublicKey, Client> replayed = new HashMap<>();
+        slotLock.lock();
+        try {
+            for (PublicKey publicKey : slots.keySet()) {
+                replayed.put(publicKey, new Client("", new byte[0]));
+            }
+            // the compacted file no longer repeats the hot fields, so the slots must be on disk first
+            buffer.force();
+        } finally {
+            slotLock.unlock();
+        }
+        for (byte[] record : LogEntry.readFile(listsPath())) {
+            LogEntry.apply(record, replayed);
+        }
+
+        compactLists(replayed);
+        lists.close();
+        openLists();
+
+        System.out.println("Compacted lists.dat from " + before + " to " + lists.size() + " bytes.");
+    }
+
+    private void openLists() throws IOException {
+        this.lists = FileChannel.open(listsPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lists.position(this.lists.size());
+        this.compactAt = Math.max(COMPACT_MIN, 2 * this.lists.size());
+    }
+
+    private void writeSlot(PublicKey publicKey, Client client) throws IOException {
+
+        Integer slot = slots.get(publicKey);
+        if (slot == null) {
+            if (count == capacity) {
+                map();
+            }
+            slot = count++;
+            slots.put(publicKey, slot);
+        }
+
+        int base = offset(slot);
+        buffer.putInt(base + BALANCE, client.getBalance());
+        buffer.putInt(base + WID, client.getWid());
+        buffer.putInt(base + RID, client.getRid());
+        writeField(base + KEY, publicKey.getEncoded(), KEY_MAX);
+        writeField(base + USERNAME, client.getUsername().getBytes(StandardCharsets.UTF_8), USERNAME_MAX);
+        writeField(base + PAIR_SIGN, client.getPair_signature(), PAIR_SIGN_MAX);
+        writeField(base + CHALLENGE, new byte[0], CHALLENGE_MAX);
+    }
+
+    // Rewrites lists.dat with one record per account holding its current lists
+    private void compactLists(Map<PublicKey, Client> clients) throws IOException {
+
+        List<byte[]> records = new ArrayList<>();
+        for (Map.Entry<PublicKey, Client> entry : clients.entrySet()) {
+            Client client = entry.getValue();
+            LogEntry lists = new LogEntry()
+                    .setPending(entry.getKey(), client.getPending())
+                    .setHistorySegment(entry.getKey(), client.getHistoryGeneration(), client.getHistorySize(), client.getHistoryBytes());
+            for (int nonce : client.getEventList()) {
+                lists.addEvent(entry.getKey(), nonce, client.getRid());
+            }
+            records.add(lists.toByteArray());
+        }
+
+        Path tmpPath = Paths.get(System.getProperty("user.dir"), this.serverName);
+        Path tmpPathFile = File.createTempFile("atomic", "tmp", new File(tmpPath.toString())).toPath();
+
+        try (FileChannel channel = FileChannel.open(tmpPathFile, StandardOpenOption.WRITE)) {
+            ByteBuffer framed = LogEntry.frame(records);
+            while (framed.hasRemaining()) {
+                channel.write(framed);
+            }
+            channel.force(true);
+        }
+
+        Files.move(tmpPathFile, listsPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // (Re)maps accounts.dat with room for at least twice the current number of accounts
+    private void map() throws IOException {
+        long stored = Math.max(0, accounts.size() / SLOT_SIZE - 1);
+        this.capacity = (int) Math.max(INITIAL_CAPACITY, Math.max(stored, 2L * count));
+        this.buffer = accounts.map(FileChannel.MapMode.READ_WRITE, 0, (long) (capacity + 1) * SLOT_SIZE);
+    }
+
+    private int slot(PublicKey publicKey) throws IOException {
+        Integer slot = slots.get(publicKey);
+        if (slot == null) {
+            throw new IOException("No account slot for this key");
+        }
+        return slot;
+    }
+
+    private int offset(int slot) {
+        return (slot + 1) * SLOT_SIZE;
+    }
+
+    private void writeField(int position, byte[] bytes, int max) throws IOException {
+        if (bytes.length > max) {
+            throw new IOException("Field of " + bytes.length + " bytes does not fit in an account slot");
+        }
+        buffer.putShort(position, (short) bytes.length);
+        ByteBuffer field = buffer.duplicate();
+        field.position(position + Short.BYTES);
+        field.put(bytes);
+    }
+
+    private byte[] readField(int position) {
+        byte[] bytes = new byte[buffer.getShort(position)];
+        ByteBuffer field = buffer.duplicate();
+        field.position(position + Short.BYTES);
+        field.get(bytes);
+        return bytes;
+    }
+
+    private Path accountsPath() {
+        return Paths.get(System.getProperty("user.dir"), this.serverName, "accounts.dat");
+    }
+
+    private Path listsPath() {
+        return Paths.get(System.getProperty("user.dir"), this.serverName, "lists.dat");
+    }
+}
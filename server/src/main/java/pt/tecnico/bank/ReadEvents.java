@@ -0,0 +1,49 @@
+package pt.tecnico.bank;
+
+import pt.tecnico.bank.domain.Client;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static pt.tecnico.bank.ServerMain.accountStore;
+
+// Nonces and rid of each reader's checkAccount and audit requests. Kept apart from the account state
+// so reads never wait for a writer, and logged without waiting for the disk: a nonce lost in a crash
+// only lets that one read be replayed.
+public class ReadEvents {
+
+    private static class Reader {
+        final Set<Integer> nonces = ConcurrentHashMap.newKeySet();
+        volatile int rid;
+    }
+
+    private final ConcurrentHashMap<PublicKey, Reader> readers = new ConcurrentHashMap<>();
+
+    public ReadEvents(Map<PublicKey, Client> clients) {
+        for (Map.Entry<PublicKey, Client> entry : clients.entrySet()) {
+            Reader reader = new Reader();
+            reader.nonces.addAll(entry.getValue().getEventList());
+            reader.rid = entry.getValue().getRid();
+            readers.put(entry.getKey(), reader);
+        }
+    }
+
+    // Records the read, or returns false if the reader already used this nonce
+    public boolean addEvent(PublicKey publicKey, int nonce, int rid) throws IOException {
+        Reader reader = readers.computeIfAbsent(publicKey, key -> new Reader());
+        if (!reader.nonces.add(nonce)) {
+            return false;
+        }
+        reader.rid = rid;
+        accountStore.appendLater(new LogEntry().addEvent(publicKey, nonce, rid));
+        return true;
+    }
+
+    public int getRid(PublicKey publicKey) {
+        Reader reader = readers.get(publicKey);
+        return reader == null ? 0 : reader.rid;
+    }
+}
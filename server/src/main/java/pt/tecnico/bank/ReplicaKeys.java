@@ -0,0 +1,47 @@
+package pt.tecnico.bank;
+
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// The configured public keys of the 3f+1 replicas, server_8080 onwards. An echo or ready is only admitted
+// when its sender names one of them and signed with that replica's key, so no one can invent origins to
+// get around the per-origin cap of ADEBInstanceManager or speak for another replica. A replica whose key
+// is not available yet, e.g. on its very first start, is looked up again on its next message.
+public class ReplicaKeys {
+
+    private final int nServers;
+    // the configured key of a replica, or null if there is none
+    private final Function<String, PublicKey> configured;
+    private final ConcurrentHashMap<String, PublicKey> keys = new ConcurrentHashMap<>();
+
+    public ReplicaKeys(int nServers, Function<String, PublicKey> configured) {
+        this.nServers = nServers;
+        this.configured = configured;
+        for (int i = 0; i < nServers; i++) {
+            get("server_" + (8080 + i));
+        }
+    }
+
+    // the key the message claims to be signed with; the signature is checked after
+    public boolean admit(String name, PublicKey key) {
+        PublicKey expected = get(name);
+        return expected != null && expected.equals(key);
+    }
+
+    public boolean isReplica(String name) {
+        if (name == null || !name.startsWith("server_")) {
+            return false;
+        }
+        try {
+            int index = Integer.parseInt(name.substring("server_".length())) - 8080;
+            return index >= 0 && index < nServers && name.equals("server_" + (8080 + index));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private PublicKey get(String name) {
+        return isReplica(name) ? keys.computeIfAbsent(name, configured) : null;
+    }
+}
@@ -1,40 +1,246 @@
 package pt.tecnico.bank;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
+import pt.tecnico.bank.SnapshotCodec.Snapshot;
+import pt.tecnico.bank.domain.Client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static pt.tecnico.bank.ServerMain.clientList;
+import static pt.tecnico.bank.ServerMain.historyStore;
+
+public class SaveHandler implements AccountStore {
 
-public class SaveHandler {
+    private static final Pattern SEGMENT = Pattern.compile("db\\.(\\d+)\\.log");
 
     private String serverName;
+    private FileChannel log;
+    private long lastSegment;
+    private final long checkpointInterval;
+    private final GroupCommit groupCommit;
+    // set when a failed batch could not be cut off the log; every later write fails instead
+    private IOException broken;
+    // held across the log's fsyncs, which a monitor would turn into pinned carrier threads
+    private final ReentrantLock logLock = new ReentrantLock();
 
-    public SaveHandler(String serverName){
+    public SaveHandler(String serverName, long commitWindow, long checkpointInterval){
         this.serverName = serverName;
+        this.checkpointInterval = checkpointInterval;
+        this.groupCommit = new GroupCommit(commitWindow, this::writeBatch);
+    }
+
+    public HashMap<PublicKey, Client> loadState() throws IOException, ClassNotFoundException {
+
+        Snapshot snapshot = readSnapshot();
+        if (snapshot.clients.isEmpty()) {
+            System.out.println("EMPTY DATABASE!!");
+        }
+
+        List<Long> segments = listSegments();
+        this.lastSegment = Math.max(snapshot.segment, segments.isEmpty() ? 0 : segments.get(segments.size() - 1));
+
+        int replayed = replaySegments(snapshot, this.lastSegment);
+        replayed += replayLog(logPath(), snapshot.clients);
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " log records.");
+        }
+
+        return snapshot.clients;
     }
 
+    public void open() throws IOException {
+        this.log = FileChannel.open(logPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.log.position(this.log.size());
+
+        // fold whatever was replayed into a fresh snapshot so the server starts from an empty log,
+        // and so the snapshot no longer carries histories that HistoryStore.open moved to segments
+        saveState();
+
+        groupCommit.start();
+
+        if (checkpointInterval > 0) {
+            ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "checkpointer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    // Blocks until the entry, together with whatever else was queued in the same window, is on disk
+    public void append(LogEntry entry) throws IOException {
+        groupCommit.append(entry.toByteArray());
+    }
+
+    public void appendLater(LogEntry entry) throws IOException {
+        groupCommit.appendLater(entry.toByteArray());
+    }
+
+    // Only safe while nothing else touches clientList (startup)
     public void saveState() throws IOException {
+        sealLog();
+        writeSnapshot(clientList, lastSegment);
+        deleteSegments(lastSegment);
+    }
+
+    // Rebuilds the state from the previous snapshot plus the sealed log segments, off to the side,
+    // so request processing never waits on it. New records keep going to a fresh db.log meanwhile.
+    public void checkpoint() {
+        try {
+            long segment = sealLog();
+            if (segment < 0) {
+                return;
+            }
+
+            Snapshot snapshot = readSnapshot();
+            replaySegments(snapshot, segment);
+            writeSnapshot(snapshot.clients, segment);
+            deleteSegments(segment);
+
+            System.out.println("Checkpoint written up to log segment " + segment + ".");
+
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Checkpoint failed: " + e.getMessage());
+        }
+    }
 
-        byte[] clientListBytes = mapToBytes();
+    private void writeBatch(List<byte[]> records) throws IOException {
+        logLock.lock();
+        try {
+            if (broken != null) {
+                throw new IOException("The log is unusable since a failed write could not be undone", broken);
+            }
+
+            ByteBuffer buffer = LogEntry.frame(records);
+
+            long start = log.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                // the history segments these records point into must be on disk before the records are
+                historyStore.sync();
+                log.force(false);
+            } catch (IOException e) {
+                // replay stops at the first torn record, so anything appended after it would be lost on restart
+                try {
+                    log.truncate(start);
+                    log.position(start);
+                    log.force(true);
+                } catch (IOException rollback) {
+                    broken = rollback;
+                    e.addSuppressed(rollback);
+                }
+                throw e;
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    // Renames db.log to the next numbered segment and starts a new one.
+    // Returns the newest sealed segment, or -1 if there is nothing to checkpoint.
+    private long sealLog() throws IOException {
+        logLock.lock();
+        try {
+            if (log.size() == 0) {
+                return listSegments().isEmpty() ? -1 : lastSegment;
+            }
+
+            log.force(true);
+            log.close();
+
+            lastSegment++;
+            Files.move(logPath(), segmentPath(lastSegment), StandardCopyOption.ATOMIC_MOVE);
+
+            log = FileChannel.open(logPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            return lastSegment;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private Snapshot readSnapshot() throws IOException, ClassNotFoundException {
+        if (!Files.exists(dbPath())) {
+            return new Snapshot();
+        }
+        return SnapshotCodec.decode(Files.readAllBytes(dbPath()));
+    }
+
+    private void writeSnapshot(Map<PublicKey, Client> clients, long segment) throws IOException {
 
         Path tmpPath = Paths.get(System.getProperty("user.dir"), this.serverName);
         Path tmpPathFile = File.createTempFile("atomic", "tmp", new File(tmpPath.toString())).toPath();
-        Files.write(tmpPathFile, clientListBytes, StandardOpenOption.APPEND);
 
-        Files.move(tmpPathFile, Paths.get(System.getProperty("user.dir"), this.serverName, "db.txt"), StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel channel = FileChannel.open(tmpPathFile, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(SnapshotCodec.encode(clients, segment));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        Files.move(tmpPathFile, dbPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int replaySegments(Snapshot snapshot, long upTo) throws IOException {
+        int replayed = 0;
+        for (long segment : listSegments()) {
+            if (segment > snapshot.segment && segment <= upTo) {
+                replayed += replayLog(segmentPath(segment), snapshot.clients);
+            }
+        }
+        return replayed;
+    }
+
+    private int replayLog(Path path, HashMap<PublicKey, Client> clients) throws IOException {
+        List<byte[]> records = LogEntry.readFile(path);
+        for (byte[] record : records) {
+            LogEntry.apply(record, clients);
+        }
+        return records.size();
+    }
+
+    private void deleteSegments(long upTo) throws IOException {
+        for (long segment : listSegments()) {
+            if (segment <= upTo) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("user.dir"), this.serverName))) {
+            return files.map(path -> SEGMENT.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path dbPath() {
+        return Paths.get(System.getProperty("user.dir"), this.serverName, "db.txt");
+    }
 
+    private Path logPath() {
+        return Paths.get(System.getProperty("user.dir"), this.serverName, "db.log");
     }
 
-    private byte[] mapToBytes() throws IOException {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(byteOut);
-        out.writeObject(clientList);
-        byte[] clientListBytes = byteOut.toByteArray();
-        out.flush();
-        byteOut.close();
-        return clientListBytes;
+    private Path segmentPath(long segment) {
+        return Paths.get(System.getProperty("user.dir"), this.serverName, "db." + segment + ".log");
     }
 }
@@ -3,6 +3,7 @@ package pt.tecnico.bank;
 import io.grpc.BindableService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import pt.tecnico.bank.domain.Client;
 import sun.misc.Signal;
 
@@ -11,12 +12,22 @@ import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ServerMain implements Serializable{
 
-	static HashMap<PublicKey,Client> clientList = new HashMap<>();
+	static ConcurrentHashMap<PublicKey,Client> clientList = new ConcurrentHashMap<>();
+	static AccountLocks accountLocks = new AccountLocks(Integer.getInteger("bank.lockStripes", 64));
+	static AccountMailboxes accountMailboxes;
+	static ReadEvents readEvents;
+	// runs the gRPC handlers and the work left for after an ADEB delivery
+	static ExecutorService executor;
 	static KeyPair keyPair = null;
-	static SaveHandler saveHandler;
+	static AccountStore accountStore;
+	static HistoryStore historyStore;
+	static LoadMonitor loadMonitor;
 	static Crypto crypto = null;
 	static int byzantine;
 	static int port;
@@ -46,31 +57,43 @@ public class ServerMain implements Serializable{
 			}
 		}
 
-		try{
-			FileInputStream fileInput = new FileInputStream(serverName + "/" + "db.txt");
-
-			ObjectInputStream objectInput = new ObjectInputStream(fileInput);
-
-			clientList = (HashMap<PublicKey, Client>)objectInput.readObject();
-
-			objectInput.close();
-			fileInput.close();
-
-
-		} catch (EOFException e) {
-			System.out.println("EMPTY DATABASE!!");
+		historyStore = new HistoryStore(serverName);
+		long commitWindow = Long.getLong("bank.commitWindow", 2);
+		if ("mapped".equals(System.getProperty("bank.storage"))) {
+			accountStore = new MappedAccountStore(serverName, commitWindow);
+		} else {
+			accountStore = new SaveHandler(serverName, commitWindow, Long.getLong("bank.checkpointInterval", 30));
 		}
+		clientList = new ConcurrentHashMap<>(accountStore.loadState());
+		historyStore.open(clientList);
+		accountStore.open();
+		clientList.values().forEach(Client::publish);
+		readEvents = new ReadEvents(clientList);
+
+		if ("mailbox".equals(System.getProperty("bank.mutations"))) {
+			accountMailboxes = new AccountMailboxes(Integer.getInteger("bank.mailboxThreads", 4 * Runtime.getRuntime().availableProcessors()));
+		}
+
+		// virtual threads cost next to nothing while a handler waits on the disk or another replica
+		executor = Boolean.getBoolean("bank.virtualThreads") ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
 
-		saveHandler = new SaveHandler(serverName);
+		loadMonitor = new LoadMonitor(Integer.getInteger("bank.powMinDifficulty", 8), Integer.getInteger("bank.powMaxDifficulty", 24),
+				Integer.getInteger("bank.powAllowance", 5), Integer.getInteger("bank.powBusyCalls", 64));
 
 		try {
 
-			ADEBInstanceManager manager = new ADEBInstanceManager();
-			ADEB adeb = new ADEB(byzantine, "server_" + port);
+			ADEBInstanceManager manager = new ADEBInstanceManager(Long.getLong("bank.adebInstanceTtl", 30000),
+					Integer.getInteger("bank.adebMaxPerOrigin", 4096));
+			ADEB adeb = new ADEB(byzantine, "server_" + port, Long.getLong("bank.adebBatchWindow", 2),
+					!"false".equals(System.getProperty("bank.adebStreams")));
 			final BindableService impl = new ServerServiceImpl(adeb, manager);
 			final BindableService ADEBimpl = new ADEBServiceImpl(adeb, manager);
 
-			Server server = ServerBuilder.forPort(port).addService(impl).addService(ADEBimpl).build();
+			Server server = ServerBuilder.forPort(port)
+					.executor(executor)
+					.addService(ServerInterceptors.intercept(impl, loadMonitor))
+					.addService(ADEBimpl)
+					.build();
 			server.start();
 			System.out.println("Server started on port " + port);
 			new Thread(() -> {
@@ -85,6 +108,8 @@ public class ServerMain implements Serializable{
 		} catch (Exception e) {
 			System.out.println("Internal Server Error: " + e.getMessage());
 		} finally {
+			System.out.println("Public key cache: " + Crypto.getKeyCacheHits() + " hits, " + Crypto.getKeyCacheMisses() + " misses.");
+			System.out.println("Signature cache: " + Crypto.getSignatureCacheHits() + " hits, " + Crypto.getSignatureCacheMisses() + " misses.");
 			System.out.println("Server closed");
 			System.exit(0);
 		}
@@ -137,4 +162,21 @@ public class ServerMain implements Serializable{
 			return null;
 		}
 	}
+
+	// A replica's configured public key: the certificate in its keystore, or null while it has none
+	public static PublicKey getPublicKey(String serverName) {
+		File file = new File(serverName + "/" + serverName + ".jks");
+		if (!file.exists()) {
+			return null;
+		}
+		try (FileInputStream is = new FileInputStream(file)) {
+			KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+			keystore.load(is, "server123".toCharArray());
+			Certificate cert = keystore.getCertificate(serverName);
+			return cert == null ? null : cert.getPublicKey();
+		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException e){
+			System.out.println("Error while getting " + serverName + "'s certificate from its keystore.");
+			return null;
+		}
+	}
 }
@@ -2,17 +2,25 @@ package pt.tecnico.bank;
 
 import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import pt.tecnico.bank.domain.AccountSnapshot;
 import pt.tecnico.bank.domain.Client;
 import pt.tecnico.bank.domain.Transactions;
 import pt.tecnico.bank.grpc.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import static io.grpc.Status.INVALID_ARGUMENT;
 import static pt.tecnico.bank.ServerMain.*;
@@ -20,6 +28,11 @@ import static pt.tecnico.bank.ServerMain.*;
 
 public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
+    private static final int MAX_AUDIT_PAGE = 256;
+    // how many reads, and for how long, a challenge can prove work for
+    private static final int CHALLENGE_USES = Math.min(Integer.getInteger("bank.challengeUses", 16), Long.SIZE);
+    private static final int CHALLENGE_SECONDS = Integer.getInteger("bank.challengeSeconds", 30);
+
     private ADEBInstanceManager adebInstanceManager;
     private ADEB adeb;
 
@@ -32,23 +45,24 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     public void rid(RidRequest request, StreamObserver<RidResponse> responseObserver){
         String message = "";
         int rid = 0;
+        int version = request.getSignatureVersion();
 
         try {
             PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
-            rid = clientList.get(publicKey).getRid();
+            rid = readEvents.getRid(publicKey);
             message = "valid";
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             message = "Something wrong with the keys!";
         }
 
-        String finalString = keyPair.getPublic().toString() + rid + message;
-        byte[] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        byte[] signature = crypto.getSignature(Payloads.ridResponse(keyPair.getPublic(), rid, message), keyPair.getPrivate(), version);
 
         RidResponse response = RidResponse.newBuilder()
                 .setServerPubKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                 .setRid(rid)
                 .setMessage(message)
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
                 .build();
 
         responseObserver.onNext(response);
@@ -72,20 +86,30 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     public void proof(ProofOfWorkRequest request, StreamObserver<ProofOfWorkResponse> responseObserver) {
 
         int nonce = request.getNonce();
+        int version = request.getSignatureVersion();
         String message = "";
         byte [] bytes = new byte[256];
+        int difficulty = 0;
 
         try {
             PublicKey myPublicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
 
-            String proofSignString = nonce + myPublicKey.toString();
+            boolean signed = crypto.verifySignature(Payloads.proofOfWorkRequest(nonce, myPublicKey), myPublicKey,
+                    request.getSignature().toByteArray(), version);
 
-            if (crypto.verifySignature(proofSignString, myPublicKey, request.getSignature().toByteArray())){
+            if (signed){
 
                 SecureRandom secureRandom = new SecureRandom();
                 secureRandom.nextBytes(bytes);
 
-                clientList.get(myPublicKey).setChallenge(Bytes.concat(bytes, request.getPublicKey().toByteArray()));
+                byte[] challenge = Bytes.concat(bytes, request.getPublicKey().toByteArray());
+                difficulty = loadMonitor.challengeDifficulty(myPublicKey);
+                Client client = clientList.get(myPublicKey);
+                synchronized (client) {
+                    client.setChallenge(challenge);
+                    client.setChallengeDifficulty(difficulty);
+                    client.setChallengeLease(CHALLENGE_USES, System.currentTimeMillis() + CHALLENGE_SECONDS * 1000L);
+                }
 
                 nonce++;
                 message = "valid";
@@ -98,8 +122,8 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
             message = "Something wrong with the keys!";
         }
 
-        String finalString = nonce + Arrays.toString(bytes) + keyPair.getPublic().toString() + message + port;
-        byte [] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        byte [] signature = crypto.getSignature(Payloads.proofOfWorkResponse(nonce, bytes, keyPair.getPublic(), message, port,
+                difficulty, CHALLENGE_USES, CHALLENGE_SECONDS), keyPair.getPrivate(), version);
 
         ProofOfWorkResponse response = ProofOfWorkResponse.newBuilder()
                 .setNonce(nonce)
@@ -108,6 +132,10 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                 .setMessage(message)
                 .setPort(port)
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
+                .setDifficulty(difficulty)
+                .setLeaseUses(CHALLENGE_USES)
+                .setLeaseSeconds(CHALLENGE_SECONDS)
                 .build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
@@ -115,6 +143,7 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
     public void openAccount(OpenAccountRequest request, StreamObserver<OpenAccountResponse> responseObserver) {
         String message = "";
+        int version = request.getSignatureVersion();
 
         try {
             PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
@@ -123,12 +152,16 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
             int balance = request.getBalance();
             byte [] pair_signature = request.getPairSign().toByteArray();
 
-            String finalString1 = publicKey.toString() + username + wid + balance + Arrays.toString(pair_signature);
-            if (crypto.verifySignature(finalString1, publicKey, request.getSignature().toByteArray())) {
+            boolean signed = crypto.verifySignature(Payloads.openAccountRequest(publicKey, username, wid, balance, pair_signature),
+                    publicKey, request.getSignature().toByteArray(), version);
+
+            if (signed) {
 
                 message = "valid";
-                clientList.put(publicKey, new Client(username, pair_signature));
-                saveHandler.saveState();
+                try (AccountLocks.Held held = accountLocks.lock(publicKey)) {
+                    clientList.put(publicKey, new Client(username, pair_signature));
+                    accountStore.append(new LogEntry().openAccount(publicKey, username, pair_signature));
+                }
 
             } else {
                 message = "Incorrect signature.";
@@ -138,13 +171,13 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
             message = "Something wrong with the keys!";
         }
 
-        String finalString = keyPair.getPublic().toString() + message;
-        byte[] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        byte[] signature = crypto.getSignature(Payloads.openAccountResponse(keyPair.getPublic(), message), keyPair.getPrivate(), version);
 
         OpenAccountResponse response = OpenAccountResponse.newBuilder()
                 .setMessage(message)
                 .setSignature(ByteString.copyFrom(signature))
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
+                .setSignatureVersion(version)
                 .build();
 
         responseObserver.onNext(response);
@@ -160,6 +193,7 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
         List<Transaction> transactions = new ArrayList<>();
         int rid = request.getRid();
         int nonce = request.getNonce();
+        int version = request.getSignatureVersion();
         byte [] pairSignature = new byte[0];
         byte [] signature1 = request.getSignature().toByteArray();
 
@@ -168,26 +202,23 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
             PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
             PublicKey mypublicKey = crypto.getPubKeyGrpc(request.getMyPublicKey().toByteArray());
 
-            String finalString = publicKey.toString() + mypublicKey.toString() + rid + nonce;
+            boolean signed = crypto.verifySignature(Payloads.checkAccountRequest(publicKey, mypublicKey, rid, nonce), mypublicKey, signature1, version);
 
-            if (crypto.verifySignature(finalString, mypublicKey, signature1)) {
+            if (signed) {
 
                 if (clientList.containsKey(publicKey)) {
 
-                    if (crypto.verifyProofOfWork(request.getConcatenated().toByteArray(), request.getPow()) && Arrays.equals(clientList.get(mypublicKey).getChallenge(), request.getConcatenated().toByteArray())) {
-
-                        Client client = clientList.get(publicKey);
-                        Client me = clientList.get(mypublicKey);
+                    if (hasProofOfWork(mypublicKey, request.getConcatenated().toByteArray(), request.getPow())) {
 
-                        balance = client.getBalance();
-                        wid = client.getWid();
-                        pairSignature = client.getPair_signature();
+                        AccountSnapshot account = clientList.get(publicKey).getSnapshot();
 
-                        if (!me.getEventList().contains(nonce)) {
+                        balance = account.getBalance();
+                        wid = account.getWid();
+                        pairSignature = account.getPair_signature();
 
-                            me.addEvent(nonce);
+                        if (readEvents.addEvent(mypublicKey, nonce, rid)) {
 
-                            for (Transactions transaction : client.getPending()) {
+                            for (Transactions transaction : account.getPending()) {
                                 transactions.add(Transaction.newBuilder()
                                         .setSourceUsername(transaction.getSenderUsername())
                                         .setDestUsername(transaction.getDestUsername())
@@ -199,10 +230,6 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                                         .build());
                             }
 
-                            me.setRid(rid);
-
-                            saveHandler.saveState();
-
                             message = "valid";
 
                         } else {
@@ -224,8 +251,8 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
         int nonce1 = nonce + 1;
 
-        String finalString = keyPair.getPublic().toString() + balance + wid + Arrays.toString(pairSignature) + rid + message + transactions + nonce1;
-        byte[] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        byte[] signature = crypto.getSignature(Payloads.checkAccountResponse(keyPair.getPublic(), balance, wid, pairSignature, rid,
+                message, transactions, nonce1), keyPair.getPrivate(), version);
 
         CheckAccountResponse response = CheckAccountResponse.newBuilder()
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
@@ -237,6 +264,7 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                 .addAllTransactions(transactions)
                 .setNonce(nonce1)
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
                 .build();
 
         responseObserver.onNext(response);
@@ -246,6 +274,7 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     public void sendAmount(SendAmountRequest request, StreamObserver<SendAmountResponse> responseObserver) {
 
         String message = "";
+        int version = request.getSignatureVersion();
         Transaction transaction = request.getTransaction();
 
         String sourceUsername = transaction.getSourceUsername();
@@ -261,47 +290,48 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
             PublicKey keySender = crypto.getPubKeyGrpc(transaction.getSource().toByteArray());
             PublicKey keyReceiver = crypto.getPubKeyGrpc(transaction.getDestination().toByteArray());
 
-            String finalString = sourceUsername + destUsername + amount
-                    + keySender.toString() + keyReceiver.toString()
-                    + Arrays.toString(transactionSignature) + wid + Arrays.toString(pairSign) + new_balance;
-
-            byte [] signature = request.getSignature().toByteArray();
+            Payload payload = Payloads.sendAmountRequest(transaction, keySender, keyReceiver, pairSign, new_balance);
+            String finalString = payload.toString(version);
+            boolean signed = crypto.verifySignature(payload, keySender, request.getSignature().toByteArray(), version);
 
             Client clientSender = clientList.get(keySender);
 
-            if (crypto.verifySignature(finalString, keySender, signature)) {
+            if (signed) {
 
                 if (clientSender.getWid() < wid) {
                     System.out.println("\nADEB STARTING SEND AMOUNT");
-                    ADEBInstance instance = adebInstanceManager.getInstance(finalString);
-                    adeb.echo(finalString);
-                    instance.await();
-                    System.out.println("ADEB finished!");
+                    reply(afterDelivery(finalString, keySender, keyReceiver, () -> {
+                        if (clientSender.getWid() < wid && clientSender.getBalance() - amount == new_balance) {
 
-                    if (clientSender.getWid() < wid && clientSender.getBalance() - amount == new_balance) {
+                            Client clientReceiver = clientList.get(keyReceiver);
 
-                        Client clientReceiver = clientList.get(keyReceiver);
-
-                        if (clientSender.getBalance() < amount) {
-                            message = "Sender account does not have enough balance.";
-                        } else if (0 >= amount) {
-                            message = "Invalid amount, must be > 0.";
-                        } else {
+                            if (clientSender.getBalance() < amount) {
+                                return "Sender account does not have enough balance.";
+                            } else if (0 >= amount) {
+                                return "Invalid amount, must be > 0.";
+                            } else {
 
-                            message = "valid";
+                                Transactions pendingTransaction = new Transactions(sourceUsername, destUsername, amount, keySender, keyReceiver, wid, transactionSignature);
 
-                            clientReceiver.addPending(new Transactions(sourceUsername, destUsername, amount, keySender, keyReceiver, wid, transactionSignature));
-                            clientSender.addHistory(new Transactions(sourceUsername, destUsername, amount, keySender, keyReceiver, wid, transactionSignature));
+                                clientReceiver.addPending(pendingTransaction);
+                                historyStore.append(keySender, clientSender, transaction);
 
-                            clientSender.setBalance(new_balance);
-                            clientSender.setWid(wid);
-                            clientSender.setPairSign(pairSign);
+                                clientSender.setBalance(new_balance);
+                                clientSender.setWid(wid);
+                                clientSender.setPairSign(pairSign);
 
-                            saveHandler.saveState();
+                                accountStore.append(new LogEntry()
+                                        .setState(keySender, new_balance, wid, pairSign)
+                                        .setHistorySegment(keySender, clientSender.getHistoryGeneration(),
+                                                clientSender.getHistorySize(), clientSender.getHistoryBytes())
+                                        .addPending(keyReceiver, pendingTransaction));
+                                return "valid";
+                            }
+                        } else {
+                            return "Wrong balance or wid.";
                         }
-                    } else {
-                        message = "Wrong balance or wid.";
-                    }
+                    }), outcome -> sendAmountResponse(responseObserver, version, wid, outcome), responseObserver);
+                    return;
                 } else {
                     message = "Replay attack!";
                 }
@@ -309,18 +339,23 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                 message = "Incorrect signature or incorrect transaction id.";
             }
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             message = "Something wrong with the keys!";
         }
 
-        String finalString1 = keyPair.getPublic().toString() + message + wid;
-        byte [] signature1 = crypto.getSignature(finalString1, keyPair.getPrivate());
+        sendAmountResponse(responseObserver, version, wid, message);
+    }
+
+    private void sendAmountResponse(StreamObserver<SendAmountResponse> responseObserver, int version, int wid, String message) {
+
+        byte [] signature1 = crypto.getSignature(Payloads.sendAmountResponse(keyPair.getPublic(), message, wid), keyPair.getPrivate(), version);
 
         SendAmountResponse response = SendAmountResponse.newBuilder()
                 .setMessage(message)
                 .setWid(wid)
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                 .setSignature(ByteString.copyFrom(signature1))
+                .setSignatureVersion(version)
                 .build();
 
         responseObserver.onNext(response);
@@ -330,6 +365,7 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     public void receiveAmount(ReceiveAmountRequest request, StreamObserver<ReceiveAmountResponse> responseObserver) {
 
         String message = "";
+        int version = request.getSignatureVersion();
         int transfer = request.getTransfer();
         int wid = request.getWid();
         int new_balance = request.getFutureBalance();
@@ -338,38 +374,41 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
         try {
             PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
-            String finalString = publicKey.toString() + new_balance + wid + Arrays.toString(pairSign) + transfer + toAuditTransaction;
+            Payload payload = Payloads.receiveAmountRequest(publicKey, new_balance, wid, pairSign, transfer, toAuditTransaction);
+            String finalString = payload.toString(version);
+            boolean signed = crypto.verifySignature(payload, publicKey, request.getSignature().toByteArray(), version);
 
             Client client = clientList.get(publicKey);
 
-            if (crypto.verifySignature(finalString, publicKey, request.getSignature().toByteArray())) {
+            if (signed) {
 
                 if (client.getWid() < wid) {
                     System.out.println("\nADEB STARTING RECEIVE AMOUNT");
-                    ADEBInstance instance = adebInstanceManager.getInstance(finalString);
-                    adeb.echo(finalString);
-                    instance.await();
-                    System.out.println("ADEB finished!");
+                    reply(afterDelivery(finalString, publicKey, publicKey, () -> {
+                        Transactions transaction = client.getPending().get(transfer);
 
-                    Transactions transaction = client.getPending().get(transfer);
+                        if (client.getWid() < wid && transfer + 1 <= client.getPending().size() && transaction.getValue() + client.getBalance() == new_balance) {
+                            client.setBalance(new_balance);
 
-                    if (client.getWid() < wid && transfer + 1 <= client.getPending().size() && transaction.getValue() + client.getBalance() == new_balance) {
-                        message = "valid";
+                            // the history keeps the transaction as sent, but it must still carry valid keys
+                            crypto.getPubKeyGrpc(toAuditTransaction.getSource().toByteArray());
+                            crypto.getPubKeyGrpc(toAuditTransaction.getDestination().toByteArray());
 
-                        client.setBalance(new_balance);
+                            client.removePending(transfer);
+                            historyStore.append(publicKey, client, toAuditTransaction);
 
-                        client.removePending(transfer);
-                        client.addHistory(new Transactions(toAuditTransaction.getSourceUsername(),
-                                toAuditTransaction.getDestUsername(), toAuditTransaction.getAmount(),
-                                crypto.getPubKeyGrpc(toAuditTransaction.getSource().toByteArray()),
-                                crypto.getPubKeyGrpc(toAuditTransaction.getDestination().toByteArray()),
-                                toAuditTransaction.getWid(), toAuditTransaction.getSignature().toByteArray()));
+                            client.setWid(wid);
+                            client.setPairSign(pairSign);
 
-                        client.setWid(wid);
-                        client.setPairSign(pairSign);
-
-                        saveHandler.saveState();
-                    }
+                            accountStore.append(new LogEntry()
+                                    .setState(publicKey, new_balance, wid, pairSign)
+                                    .removePending(publicKey, transfer)
+                                    .setHistorySegment(publicKey, client.getHistoryGeneration(), client.getHistorySize(), client.getHistoryBytes()));
+                            return "valid";
+                        }
+                        return "";
+                    }), outcome -> receiveAmountResponse(responseObserver, version, wid, outcome), responseObserver);
+                    return;
                 } else {
                     message = "Replay attack!";
                 }
@@ -378,18 +417,23 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                 message = "Incorrect signature, repeated event or incorrect transaction id.";
             }
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             message = "Something wrong with the keys!";
         }
 
-        String finalString1 = keyPair.getPublic().toString() + message + wid;
-        byte [] signature1 = crypto.getSignature(finalString1, keyPair.getPrivate());
+        receiveAmountResponse(responseObserver, version, wid, message);
+    }
+
+    private void receiveAmountResponse(StreamObserver<ReceiveAmountResponse> responseObserver, int version, int wid, String message) {
+
+        byte [] signature1 = crypto.getSignature(Payloads.receiveAmountResponse(keyPair.getPublic(), message, wid), keyPair.getPrivate(), version);
 
         ReceiveAmountResponse response = ReceiveAmountResponse.newBuilder()
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                 .setWid(wid)
                 .setMessage(message)
                 .setSignature(ByteString.copyFrom(signature1))
+                .setSignatureVersion(version)
                 .build();
 
         responseObserver.onNext(response);
@@ -401,40 +445,25 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
         String message = "";
         int nonce = request.getNonce();
         int rid = request.getRid();
+        int version = request.getSignatureVersion();
         List<Transaction> transactions = new ArrayList<>();
 
         try {
             PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
             PublicKey mypublicKey = crypto.getPubKeyGrpc(request.getMyPublicKey().toByteArray());
 
-            String finalString = publicKey.toString() + mypublicKey.toString() + nonce + rid;
+            boolean signed = crypto.verifySignature(Payloads.auditRequest(publicKey, mypublicKey, nonce, rid),
+                    mypublicKey, request.getSignature().toByteArray(), version);
 
-            if (crypto.verifySignature(finalString, mypublicKey, request.getSignature().toByteArray())) {
-                if (crypto.verifyProofOfWork(request.getConcatenated().toByteArray(), request.getPow()) && Arrays.equals(clientList.get(mypublicKey).getChallenge(), request.getConcatenated().toByteArray())) {
+            if (signed) {
+                if (hasProofOfWork(mypublicKey, request.getConcatenated().toByteArray(), request.getPow())) {
                     if (clientList.containsKey(publicKey)) {
 
                         Client client = clientList.get(publicKey);
-                        Client me = clientList.get(mypublicKey);
-
-                        if (!me.getEventList().contains(nonce)) {
-
-                            me.addEvent(nonce);
 
-                            for (Transactions transaction : client.getHistory()) {
-                                transactions.add(Transaction.newBuilder()
-                                        .setSourceUsername(transaction.getSenderUsername())
-                                        .setDestUsername(transaction.getDestUsername())
-                                        .setAmount(transaction.getValue())
-                                        .setSource(ByteString.copyFrom(transaction.getSourceKey().getEncoded()))
-                                        .setDestination(ByteString.copyFrom(transaction.getDestKey().getEncoded()))
-                                        .setWid(transaction.getWid())
-                                        .setSignature(ByteString.copyFrom(transaction.getSignature()))
-                                        .build());
-                            }
+                        if (readEvents.addEvent(mypublicKey, nonce, rid)) {
 
-                            me.setRid(rid);
-
-                            saveHandler.saveState();
+                            historyStore.read(publicKey, client, 0, Integer.MAX_VALUE, transactions::add);
 
                             message = "valid";
 
@@ -457,8 +486,8 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
         int nonce1 = nonce + 1;
 
-        String finalString = keyPair.getPublic().toString() + transactions + nonce1 + rid + message;
-        byte[] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        byte[] signature = crypto.getSignature(Payloads.auditResponse(keyPair.getPublic(), transactions, nonce1, rid, message),
+                keyPair.getPrivate(), version);
 
         AuditResponse response = AuditResponse.newBuilder()
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
@@ -467,13 +496,139 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                 .setRid(rid)
                 .setMessage(message)
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
+                .build();
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    public void auditPage(AuditPageRequest request, StreamObserver<AuditPageResponse> responseObserver) {
+
+        String message = "";
+        int nonce = request.getNonce();
+        int rid = request.getRid();
+        int version = request.getSignatureVersion();
+        int cursor = request.getCursor();
+        int pageSize = request.getPageSize() <= 0 ? MAX_AUDIT_PAGE : Math.min(request.getPageSize(), MAX_AUDIT_PAGE);
+        int nextCursor = cursor;
+        int historySize = 0;
+        List<Transaction> transactions = new ArrayList<>();
+
+        try {
+            PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
+            PublicKey mypublicKey = crypto.getPubKeyGrpc(request.getMyPublicKey().toByteArray());
+
+            boolean signed = crypto.verifySignature(Payloads.auditPageRequest(publicKey, mypublicKey, nonce, rid, cursor, request.getPageSize()),
+                    mypublicKey, request.getSignature().toByteArray(), version);
+
+            if (signed) {
+                if (hasProofOfWork(mypublicKey, request.getConcatenated().toByteArray(), request.getPow())) {
+                    if (!clientList.containsKey(publicKey)) {
+                        message = "No account found with that username.";
+                    } else if (cursor < 0) {
+                        message = "Invalid audit cursor.";
+                    } else {
+
+                        Client client = clientList.get(publicKey);
+
+                        if (readEvents.addEvent(mypublicKey, nonce, rid)) {
+
+                            HistoryStore.View history = historyStore.view(client);
+                            historySize = history.getSize();
+                            nextCursor = historyStore.read(publicKey, client, history, cursor, pageSize, transactions::add);
+
+                            message = "valid";
+
+                        } else {
+                            message = "Replay attack!";
+                        }
+                    }
+                } else {
+                    message = "No proof of work or wrong challenge!";
+                }
+            } else {
+                message = "Wrong signing from user!";
+            }
+
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+            message = "Something wrong with the keys!";
+        }
+
+        int nonce1 = nonce + 1;
+
+        byte[] signature = crypto.getSignature(Payloads.auditPageResponse(keyPair.getPublic(), transactions, nonce1, rid, cursor,
+                nextCursor, historySize, message), keyPair.getPrivate(), version);
+
+        AuditPageResponse response = AuditPageResponse.newBuilder()
+                .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
+                .addAllTransactions(transactions)
+                .setNonce(nonce1)
+                .setRid(rid)
+                .setCursor(cursor)
+                .setNextCursor(nextCursor)
+                .setHistorySize(historySize)
+                .setMessage(message)
+                .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
                 .build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 
+    public void auditStream(AuditRequest request, StreamObserver<AuditChunk> responseObserver) {
+
+        ServerCallStreamObserver<AuditChunk> stream = (ServerCallStreamObserver<AuditChunk>) responseObserver;
+
+        String message = "";
+        int nonce = request.getNonce();
+        int rid = request.getRid();
+        int version = request.getSignatureVersion();
+        AuditStreamer streamer = null;
+
+        try {
+            PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
+            PublicKey mypublicKey = crypto.getPubKeyGrpc(request.getMyPublicKey().toByteArray());
+
+            boolean signed = crypto.verifySignature(Payloads.auditRequest(publicKey, mypublicKey, nonce, rid),
+                    mypublicKey, request.getSignature().toByteArray(), version);
+
+            if (signed) {
+                if (hasProofOfWork(mypublicKey, request.getConcatenated().toByteArray(), request.getPow())) {
+                    if (clientList.containsKey(publicKey)) {
+
+                        Client client = clientList.get(publicKey);
+
+                        if (readEvents.addEvent(mypublicKey, nonce, rid)) {
+                            streamer = new AuditStreamer(stream, publicKey, client, nonce, rid, version);
+                        } else {
+                            message = "Replay attack!";
+                        }
+                    } else {
+                        message = "No account found with that username.";
+                    }
+                } else {
+                    message = "No proof of work or wrong challenge!";
+                }
+            } else {
+                message = "Wrong signing from user!";
+            }
+
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+            message = "Something wrong with the keys!";
+        }
+
+        if (streamer == null) {
+            responseObserver.onNext(AuditStreamer.refusal(nonce, rid, version, message));
+            responseObserver.onCompleted();
+        } else {
+            stream.setOnReadyHandler(streamer);
+            streamer.run();
+        }
+    }
+
     public void checkWriteBack(CheckWriteBackRequest request, StreamObserver<CheckWriteBackResponse> responseObserver){
         String message = "";
+        int version = request.getSignatureVersion();
         List<Transaction> transactions = request.getTransactionsList();
         int balance = request.getBalance();
         int wid = request.getWid();
@@ -481,48 +636,56 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
         try {
             PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
             PublicKey mypublicKey = crypto.getPubKeyGrpc(request.getMyPublicKey().toByteArray());
-            String finalString = String.valueOf(balance) + transactions + wid + Arrays.toString(pairSign) + publicKey.toString() + mypublicKey.toString();
+            Payload payload = Payloads.checkWriteBackRequest(balance, transactions, wid, pairSign, publicKey, mypublicKey);
+            String finalString = payload.toString(version);
+            boolean signed = crypto.verifySignature(payload, mypublicKey, request.getSignature().toByteArray(), version);
 
-            if (crypto.verifySignature(finalString, mypublicKey, request.getSignature().toByteArray())) {
+            if (signed && signedTransactions(transactions, null)) {
 
                 System.out.println("\nADEB STARTING CHECK WRITE BACK");
-                ADEBInstance instance = adebInstanceManager.getInstance(finalString);
-                adeb.echo(finalString);
-                instance.await();
-                System.out.println("ADEB finished!");
-
-                Client client = clientList.get(publicKey);
-                List<Transactions> pending = new ArrayList<>();
-
-                if (wid > client.getWid()) {
-                    for (Transaction transaction : transactions) {
-                        pending.add(new Transactions(transaction.getSourceUsername(), transaction.getDestUsername(), transaction.getAmount(),
-                                crypto.getPubKeyGrpc(transaction.getSource().toByteArray()), crypto.getPubKeyGrpc(transaction.getDestination().toByteArray()),
-                                transaction.getWid(), transaction.getSignature().toByteArray()));
+                reply(afterDelivery(finalString, publicKey, publicKey, () -> {
+                    Client client = clientList.get(publicKey);
+                    List<Transactions> pending = new ArrayList<>();
+
+                    if (wid > client.getWid()) {
+                        for (Transaction transaction : transactions) {
+                            pending.add(new Transactions(transaction.getSourceUsername(), transaction.getDestUsername(), transaction.getAmount(),
+                                    crypto.getPubKeyGrpc(transaction.getSource().toByteArray()), crypto.getPubKeyGrpc(transaction.getDestination().toByteArray()),
+                                    transaction.getWid(), transaction.getSignature().toByteArray()));
+                        }
+                        client.setBalance(balance);
+                        client.setPending(pending);
+                        client.setWid(wid);
+                        client.setPairSign(pairSign);
+
+                        accountStore.append(new LogEntry()
+                                .setState(publicKey, balance, wid, pairSign)
+                                .setPending(publicKey, pending));
                     }
-                    client.setBalance(balance);
-                    client.setPending(pending);
-                    client.setWid(wid);
-                    client.setPairSign(pairSign);
-                }
-                System.out.println("Successful write back!");
-                message = "valid";
-                saveHandler.saveState();
+                    System.out.println("Successful write back!");
+                    return "valid";
+                }), outcome -> checkWriteBackResponse(responseObserver, version, outcome), responseObserver);
+                return;
 
             } else {
                 System.out.println("Not write back!");
             }
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             message = "Something wrong with the keys!";
         }
 
-        String finalString = keyPair.getPublic().toString() + message;
-        byte [] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        checkWriteBackResponse(responseObserver, version, message);
+    }
+
+    private void checkWriteBackResponse(StreamObserver<CheckWriteBackResponse> responseObserver, int version, String message) {
+
+        byte [] signature = crypto.getSignature(Payloads.checkWriteBackResponse(keyPair.getPublic(), message), keyPair.getPrivate(), version);
 
         CheckWriteBackResponse response = CheckWriteBackResponse.newBuilder().setMessage(message)
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
                 .build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
@@ -530,51 +693,146 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
     public void auditWriteBack(AuditWriteBackRequest request, StreamObserver<AuditWriteBackResponse> responseObserver){
         String message = "";
+        int version = request.getSignatureVersion();
         List<Transaction> transactions = request.getTransactionsList();
         try {
             PublicKey publicKey = crypto.getPubKeyGrpc(request.getPublicKey().toByteArray());
             PublicKey mypublicKey = crypto.getPubKeyGrpc(request.getMyPublicKey().toByteArray());
-            String finalString = transactions + publicKey.toString() + mypublicKey.toString();
+            Payload payload = Payloads.auditWriteBackRequest(transactions, publicKey, mypublicKey);
+            String finalString = payload.toString(version);
+            boolean signed = crypto.verifySignature(payload, mypublicKey, request.getSignature().toByteArray(), version);
 
-            if (crypto.verifySignature(finalString, mypublicKey, request.getSignature().toByteArray())) {
+            if (signed && signedTransactions(transactions, publicKey)) {
 
                 System.out.println("\nADEB STARTING AUDIT WRITE BACK");
-                ADEBInstance instance = adebInstanceManager.getInstance(finalString);
-                adeb.echo(finalString);
-                instance.await();
-                System.out.println("ADEB finished!");
-
-                Client client = clientList.get(publicKey);
-                List<Transactions> history = new ArrayList<>();
-
-                for (Transaction transaction : transactions) {
-                    history.add(new Transactions(transaction.getSourceUsername(), transaction.getDestUsername(), transaction.getAmount(),
-                            crypto.getPubKeyGrpc(transaction.getSource().toByteArray()), crypto.getPubKeyGrpc(transaction.getDestination().toByteArray()),
-                            transaction.getWid(), transaction.getSignature().toByteArray()));
-                }
-
-                client.setHistory(history);
+                reply(afterDelivery(finalString, publicKey, publicKey, () -> {
+                    Client client = clientList.get(publicKey);
 
-                System.out.println("Successful write back!");
-                message = "valid";
-                saveHandler.saveState();
+                    historyStore.replace(publicKey, client, transactions);
+                    accountStore.append(new LogEntry()
+                            .setHistorySegment(publicKey, client.getHistoryGeneration(), client.getHistorySize(), client.getHistoryBytes()));
+                    System.out.println("Successful write back!");
+                    return "valid";
+                }), outcome -> auditWriteBackResponse(responseObserver, version, outcome), responseObserver);
+                return;
 
             } else {
                 System.out.println("Not write back!");
             }
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             message = "Something wrong with the keys!";
         }
 
-        String finalString = keyPair.getPublic().toString() + message;
-        byte [] signature = crypto.getSignature(finalString, keyPair.getPrivate());
+        auditWriteBackResponse(responseObserver, version, message);
+    }
+
+    private void auditWriteBackResponse(StreamObserver<AuditWriteBackResponse> responseObserver, int version, String message) {
+
+        byte [] signature = crypto.getSignature(Payloads.auditWriteBackResponse(keyPair.getPublic(), message), keyPair.getPrivate(), version);
 
         AuditWriteBackResponse response = AuditWriteBackResponse.newBuilder().setMessage(message)
                 .setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
                 .setSignature(ByteString.copyFrom(signature))
+                .setSignatureVersion(version)
                 .build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
+
+    // A proof of work must be over the client's current challenge, its public key and a counter of the
+    // challenge's lease that was not used yet. Clients that predate leases prove work over the bare
+    // challenge, which spends counter 0.
+    private boolean hasProofOfWork(PublicKey publicKey, byte[] concatenated, long pow) {
+
+        Client client = clientList.get(publicKey);
+        if (client == null) {
+            return false;
+        }
+
+        synchronized (client) {
+            byte[] challenge = client.getChallenge();
+            int counter;
+            if (challenge == null) {
+                return false;
+            } else if (Arrays.equals(challenge, concatenated)) {
+                counter = 0;
+            } else if (concatenated.length == challenge.length + Integer.BYTES
+                    && Arrays.equals(challenge, 0, challenge.length, concatenated, 0, challenge.length)) {
+                counter = ByteBuffer.wrap(concatenated, challenge.length, Integer.BYTES).getInt();
+            } else {
+                return false;
+            }
+
+            return crypto.verifyProofOfWork(concatenated, pow, loadMonitor.requiredDifficulty(client))
+                    && client.useChallenge(counter, System.currentTimeMillis());
+        }
+    }
+
+    // Broadcasts the request through ADEB and, once it is delivered, applies its change to the account
+    // (and, for transfers, to the other account it touches). No thread waits for the broadcast.
+    private <T> CompletableFuture<T> afterDelivery(String input, PublicKey account, PublicKey other, AccountMailboxes.Mutation<T> mutation) {
+        ByteString digest = ADEB.digest(input);
+        ADEBInstance instance = adebInstanceManager.getInstance(digest, null);
+        adeb.echo(digest);
+        return instance.getDelivery().thenComposeAsync(delivered -> {
+            System.out.println("ADEB finished!");
+            return mutate(account, other, mutation);
+        }, executor);
+    }
+
+    // With bank.mutations=mailbox the change runs in the account's mailbox, in arrival order, otherwise
+    // right away. Either way it holds the accounts' locks, as a transfer changes the receiver too, and
+    // publishes the accounts' new snapshots for reads when it is done.
+    private <T> CompletableFuture<T> mutate(PublicKey account, PublicKey other, AccountMailboxes.Mutation<T> mutation) {
+        AccountMailboxes.Mutation<T> locked = () -> {
+            try (AccountLocks.Held held = accountLocks.lock(account, other)) {
+                return mutation.apply();
+            } finally {
+                clientList.get(account).publish();
+                clientList.get(other).publish();
+            }
+        };
+        if (accountMailboxes != null) {
+            return accountMailboxes.submit(account, locked);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AccountMailboxes.run(locked, result);
+        return result;
+    }
+
+    // Answers with the outcome of a delivered request, or a refusal if its broadcast expired. Key errors
+    // get the message the handlers' catch blocks give, anything else fails the call.
+    private void reply(CompletableFuture<String> outcome, Consumer<String> respond, StreamObserver<?> responseObserver) {
+        outcome.whenComplete((message, failure) -> {
+            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+            if (cause == null) {
+                respond.accept(message);
+            } else if (cause instanceof GeneralSecurityException || cause instanceof IOException) {
+                respond.accept("Something wrong with the keys!");
+            } else if (cause instanceof TimeoutException) {
+                respond.accept("Broadcast did not complete.");
+            } else {
+                System.out.println("Error applying a delivered request: " + cause);
+                responseObserver.onError(Status.INTERNAL.withCause(cause).asRuntimeException());
+            }
+        });
+    }
+
+    // Written back transactions must still be signed by their owner: the account whose history they
+    // are in, or for pending transactions (signer null) their source. Most come back on every write
+    // back, so their verifications are cached.
+    private boolean signedTransactions(List<Transaction> transactions, PublicKey signer) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        for (Transaction transaction : transactions) {
+            PublicKey source = crypto.getPubKeyGrpc(transaction.getSource().toByteArray());
+            PublicKey destination = crypto.getPubKeyGrpc(transaction.getDestination().toByteArray());
+            String transactionString = transaction.getSourceUsername() + transaction.getDestUsername()
+                    + transaction.getAmount() + source + destination + transaction.getWid();
+
+            if (!crypto.verifyCachedSignature(transactionString, signer == null ? source : signer, transaction.getSignature().toByteArray())) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package pt.tecnico.bank;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.domain.Transactions;
+import pt.tecnico.bank.storage.Database;
+import pt.tecnico.bank.storage.StoredClient;
+import pt.tecnico.bank.storage.StoredTransaction;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.*;
+
+import static pt.tecnico.bank.ServerMain.crypto;
+
+// Reads and writes db.txt. Current snapshots are a Database protobuf message behind a small header;
+// older Java-serialized snapshots are still accepted on read.
+public class SnapshotCodec {
+
+    static final int VERSION = 2;
+    private static final byte[] MAGIC = "BKDB".getBytes(StandardCharsets.US_ASCII);
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    public static class Snapshot {
+        long segment = 0;
+        HashMap<PublicKey, Client> clients = new HashMap<>();
+    }
+
+    public static byte[] encode(Map<PublicKey, Client> clients, long segment) {
+
+        Map<PublicKey, Integer> keyIds = new HashMap<>();
+        Database.Builder database = Database.newBuilder().setVersion(VERSION).setSegment(segment);
+
+        for (Map.Entry<PublicKey, Client> entry : clients.entrySet()) {
+            Client client = entry.getValue();
+
+            StoredClient.Builder stored = StoredClient.newBuilder()
+                    .setKey(intern(entry.getKey(), keyIds, database))
+                    .setUsername(client.getUsername())
+                    .setBalance(client.getBalance())
+                    .setWid(client.getWid())
+                    .setRid(client.getRid())
+                    .setPairSignature(ByteString.copyFrom(client.getPair_signature()))
+                    .addAllEvents(client.getEventList())
+                    .setHistoryGeneration(client.getHistoryGeneration())
+                    .setHistorySize(client.getHistorySize())
+                    .setHistoryBytes(client.getHistoryBytes());
+
+            if (client.getChallenge() != null) {
+                stored.setChallenge(ByteString.copyFrom(client.getChallenge()));
+            }
+            for (Transactions transaction : client.getPending()) {
+                stored.addPending(encodeTransaction(transaction, keyIds, database));
+            }
+            if (client.getHistory() != null) {
+                for (Transactions transaction : client.getHistory()) {
+                    stored.addHistory(encodeTransaction(transaction, keyIds, database));
+                }
+            }
+
+            database.addClients(stored);
+        }
+
+        byte[] body = database.build().toByteArray();
+        return ByteBuffer.allocate(MAGIC.length + body.length).put(MAGIC).put(body).array();
+    }
+
+    public static Snapshot decode(byte[] bytes) throws IOException, ClassNotFoundException {
+
+        Snapshot snapshot = new Snapshot();
+
+        if (bytes.length == 0) {
+            return snapshot;
+        }
+
+        if (bytes.length >= 2 && ((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF)) == JAVA_SERIALIZATION_MAGIC) {
+            return decodeJava(bytes);
+        }
+
+        if (bytes.length < MAGIC.length || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+            throw new IOException("db.txt is not a bank snapshot");
+        }
+
+        Database database = Database.parseFrom(ByteBuffer.wrap(bytes, MAGIC.length, bytes.length - MAGIC.length));
+        if (database.getVersion() > VERSION) {
+            throw new IOException("Snapshot version " + database.getVersion() + " is newer than this server");
+        }
+
+        List<PublicKey> keys = new ArrayList<>(database.getKeysCount());
+        for (ByteString key : database.getKeysList()) {
+            try {
+                keys.add(crypto.getPubKeyGrpc(key.toByteArray()));
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                throw new IOException("Corrupted public key in snapshot", e);
+            }
+        }
+
+        for (StoredClient stored : database.getClientsList()) {
+            Client client = new Client(stored.getUsername(), stored.getPairSignature().toByteArray());
+            client.setBalance(stored.getBalance());
+            client.setWid(stored.getWid());
+            client.setRid(stored.getRid());
+            stored.getEventsList().forEach(client::addEvent);
+            if (!stored.getChallenge().isEmpty()) {
+                client.setChallenge(stored.getChallenge().toByteArray());
+            }
+
+            List<Transactions> pending = new ArrayList<>(stored.getPendingCount());
+            for (StoredTransaction transaction : stored.getPendingList()) {
+                pending.add(decodeTransaction(transaction, keys));
+            }
+            client.setPending(pending);
+
+            client.setHistorySegment(stored.getHistoryGeneration(), stored.getHistorySize(), stored.getHistoryBytes());
+            if (stored.getHistoryCount() > 0) {
+                List<Transactions> history = new ArrayList<>(stored.getHistoryCount());
+                for (StoredTransaction transaction : stored.getHistoryList()) {
+                    history.add(decodeTransaction(transaction, keys));
+                }
+                client.setHistory(history);
+            }
+
+            snapshot.clients.put(keys.get(stored.getKey()), client);
+        }
+
+        snapshot.segment = database.getSegment();
+        return snapshot;
+    }
+
+    private static Snapshot decodeJava(byte[] bytes) throws IOException, ClassNotFoundException {
+
+        Snapshot snapshot = new Snapshot();
+
+        try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            Object first = objectInput.readObject();
+            if (first instanceof Long) {
+                snapshot.segment = (Long) first;
+                snapshot.clients = (HashMap<PublicKey, Client>) objectInput.readObject();
+            } else {
+                // written before log segments existed
+                snapshot.clients = (HashMap<PublicKey, Client>) first;
+            }
+        }
+
+        return snapshot;
+    }
+
+    private static int intern(PublicKey publicKey, Map<PublicKey, Integer> keyIds, Database.Builder database) {
+        Integer id = keyIds.get(publicKey);
+        if (id == null) {
+            id = database.getKeysCount();
+            database.addKeys(ByteString.copyFrom(publicKey.getEncoded()));
+            keyIds.put(publicKey, id);
+        }
+        return id;
+    }
+
+    private static StoredTransaction encodeTransaction(Transactions transaction, Map<PublicKey, Integer> keyIds, Database.Builder database) {
+        return StoredTransaction.newBuilder()
+                .setSourceUsername(transaction.getSenderUsername())
+                .setDestUsername(transaction.getDestUsername())
+                .setAmount(transaction.getValue())
+                .setSource(intern(transaction.getSourceKey(), keyIds, database))
+                .setDestination(intern(transaction.getDestKey(), keyIds, database))
+                .setWid(transaction.getWid())
+                .setSignature(ByteString.copyFrom(transaction.getSignature()))
+                .build();
+    }
+
+    private static Transactions decodeTransaction(StoredTransaction transaction, List<PublicKey> keys) {
+        return new Transactions(transaction.getSourceUsername(), transaction.getDestUsername(), transaction.getAmount(),
+                keys.get(transaction.getSource()), keys.get(transaction.getDestination()),
+                transaction.getWid(), transaction.getSignature().toByteArray());
+    }
+}
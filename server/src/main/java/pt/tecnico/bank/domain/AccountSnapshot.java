@@ -0,0 +1,28 @@
+package pt.tecnico.bank.domain;
+
+import java.util.List;
+
+// The part of a Client that reads return, frozen at the end of a change. Never modified, so reads
+// can use it without taking the account's lock.
+public class AccountSnapshot {
+
+    private final int balance;
+    private final int wid;
+    private final byte[] pair_signature;
+    private final List<Transactions> pending;
+
+    AccountSnapshot(int balance, int wid, byte[] pair_signature, List<Transactions> pending) {
+        this.balance = balance;
+        this.wid = wid;
+        this.pair_signature = pair_signature;
+        this.pending = List.copyOf(pending);
+    }
+
+    public int getBalance() { return balance; }
+
+    public int getWid() { return wid; }
+
+    public byte[] getPair_signature() { return pair_signature; }
+
+    public List<Transactions> getPending() { return pending; }
+}
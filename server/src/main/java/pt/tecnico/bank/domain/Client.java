@@ -7,28 +7,44 @@ import java.util.HashSet;
 import java.util.List;
 
 public class Client implements Serializable {
+    // pinned so snapshots written by older builds still deserialize
+    private static final long serialVersionUID = 1526510892772579917L;
+
     private String username;
     private int balance;
     private List<Transactions> pending;
+    // only set on accounts read from snapshots or logs written before history segments;
+    // HistoryStore.open moves it to disk
     private List<Transactions> history;
+    private int historyGeneration;
+    private int historySize;
+    private long historyBytes;
     private int wid;
+    // rid and eventList as of the last start; while running, ReadEvents keeps them
     private int rid;
     private byte [] pair_signature;
     private HashSet<Integer> eventList;
     private byte[] challenge;
+    private int challengeDifficulty;
+    private int challengeUses;
+    private long challengeExpiry;
+    private long usedCounters;
+    private transient volatile AccountSnapshot snapshot;
 
     public Client(String username, byte [] pair_signature) {
         this.username = username;
         this.balance = 500;
         this.pending = new ArrayList<>();
-        this.history = new ArrayList<>();
         this.wid = 0;
         this.rid = 0;
         this.pair_signature = pair_signature;
         this.eventList = new HashSet<>();
         this.challenge = null;
+        publish();
     }
 
+    public String getUsername() { return username; }
+
     public int getBalance(){ return balance; }
     public void setBalance(int balance) { this.balance = balance; }
 
@@ -43,10 +59,22 @@ public class Client implements Serializable {
 
     public List<Transactions> getHistory() { return history; }
     public void addHistory (Transactions transaction) {
+        if (this.history == null) {
+            this.history = new ArrayList<>();
+        }
         this.history.add(transaction);
     }
     public void setHistory (List<Transactions> list) { this.history = list; }
 
+    public int getHistoryGeneration() { return historyGeneration; }
+    public int getHistorySize() { return historySize; }
+    public long getHistoryBytes() { return historyBytes; }
+    public void setHistorySegment(int generation, int size, long bytes) {
+        this.historyGeneration = generation;
+        this.historySize = size;
+        this.historyBytes = bytes;
+    }
+
     public int getWid() { return this.wid; }
     public int getRid() { return this.rid; }
 
@@ -59,6 +87,28 @@ public class Client implements Serializable {
     public HashSet<Integer> getEventList() { return this.eventList; }
     public void addEvent(int nonce) { this.eventList.add(nonce); }
 
+    public AccountSnapshot getSnapshot() { return this.snapshot; }
+    // Called by the writer once a change is complete
+    public void publish() { this.snapshot = new AccountSnapshot(balance, wid, pair_signature, pending); }
+
     public byte[] getChallenge() { return this.challenge; }
     public void setChallenge(byte[] challenge) { this.challenge = challenge; }
+
+    public int getChallengeDifficulty() { return this.challengeDifficulty; }
+    public void setChallengeDifficulty(int challengeDifficulty) { this.challengeDifficulty = challengeDifficulty; }
+
+    public void setChallengeLease(int uses, long expiry) {
+        this.challengeUses = uses;
+        this.challengeExpiry = expiry;
+        this.usedCounters = 0;
+    }
+
+    // Spends one of the current challenge's counters, which must be below its uses (at most 64)
+    public boolean useChallenge(int counter, long now) {
+        if (counter < 0 || counter >= challengeUses || now >= challengeExpiry || (usedCounters & 1L << counter) != 0) {
+            return false;
+        }
+        usedCounters |= 1L << counter;
+        return true;
+    }
 }
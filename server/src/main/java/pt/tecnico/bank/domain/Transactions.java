@@ -4,6 +4,8 @@ import java.io.Serializable;
 import java.security.PublicKey;
 
 public class Transactions implements Serializable {
+    private static final long serialVersionUID = -4691949542145168186L;
+
     private String senderUsername;
     private String destUsername;
     private int value;
@@ -0,0 +1,102 @@
+package pt.tecnico.bank;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ADEBInstanceManagerTest {
+
+    @Test
+    public void capsUndeliveredInstancesPerOrigin() {
+        ADEBInstanceManager manager = new ADEBInstanceManager(60000, 2);
+
+        ADEBInstance first = manager.getInstance(digest(1), "server_8081");
+        assertNotNull(first);
+        assertNotNull(manager.getInstance(digest(2), "server_8081"));
+        assertNull(manager.getInstance(digest(3), "server_8081"));
+
+        // instances that already exist are found whoever asks, and other origins have their own quota
+        assertSame(first, manager.getInstance(digest(1), "server_8081"));
+        assertNotNull(manager.getInstance(digest(3), "server_8082"));
+        // this replica's own requests are not capped
+        assertNotNull(manager.getInstance(digest(4), null));
+        assertNotNull(manager.getInstance(digest(5), null));
+        assertEquals(5, manager.pending());
+
+        // delivering frees a slot
+        manager.deliver(digest(1));
+        assertTrue(first.getDelivery().isDone());
+        assertEquals(4, manager.pending());
+        assertNotNull(manager.getInstance(digest(6), "server_8081"));
+        assertNull(manager.getInstance(digest(7), "server_8081"));
+    }
+
+    @Test
+    public void deliversOnce() {
+        ADEBInstanceManager manager = new ADEBInstanceManager(60000, 2);
+        manager.getInstance(digest(1), "server_8081");
+
+        manager.deliver(digest(1));
+        manager.deliver(digest(1));
+        manager.deliver(digest(2));
+
+        assertEquals(0, manager.pending());
+        assertNotNull(manager.getInstance(digest(2), "server_8081"));
+        assertNotNull(manager.getInstance(digest(3), "server_8081"));
+    }
+
+    @Test
+    public void retransmissionAfterDeliveryStartsAnew() {
+        ADEBInstanceManager manager = new ADEBInstanceManager(60000, 2);
+        ADEBInstance first = manager.getInstance(digest(1), null);
+        assertSame(first, manager.getInstance(digest(1), "server_8081"));
+
+        manager.deliver(digest(1));
+        assertTrue(first.getDelivery().isDone());
+
+        // the same request sent again is broadcast again, not answered with the first delivery
+        ADEBInstance again = manager.getInstance(digest(1), null);
+        assertNotSame(first, again);
+        assertFalse(again.getDelivery().isDone());
+        assertEquals(1, manager.pending());
+    }
+
+    @Test
+    public void expiresUndeliveredInstances() throws InterruptedException {
+        ADEBInstanceManager manager = new ADEBInstanceManager(100, 1);
+        ADEBInstance undelivered = manager.getInstance(digest(1), "server_8081");
+        ADEBInstance delivered = manager.getInstance(digest(2), null);
+        manager.deliver(digest(2));
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> undelivered.getDelivery().get(5, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof TimeoutException);
+        assertFalse(delivered.getDelivery().isCompletedExceptionally());
+
+        waitForSweep(manager);
+        assertEquals(0, manager.pending());
+
+        // both are gone, and the expired one gave its slot back
+        ADEBInstance again = manager.getInstance(digest(1), "server_8081");
+        assertNotSame(undelivered, again);
+        assertFalse(again.getDelivery().isDone());
+        assertNotSame(delivered, manager.getInstance(digest(2), null));
+    }
+
+    // Sweeps run every 100 ms here; the one that expires an instance may still be going through the rest
+    private static void waitForSweep(ADEBInstanceManager manager) throws InterruptedException {
+        for (int i = 0; i < 50 && manager.pending() > 0; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(300);
+    }
+
+    private static ByteString digest(int value) {
+        return ByteString.copyFrom(Crypto.sha256(new byte[]{(byte) value}));
+    }
+}
@@ -0,0 +1,205 @@
+package pt.tecnico.bank;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.bank.grpc.ADEBMessage;
+import pt.tecnico.bank.grpc.ADEBServiceGrpc;
+import pt.tecnico.bank.grpc.EchoRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ADEBStreamTest {
+
+    private final String name = "adeb-stream-test-" + System.nanoTime();
+    // every exchange the peer accepted, in order
+    private final LinkedBlockingQueue<Exchange> exchanges = new LinkedBlockingQueue<>();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final Semaphore failed = new Semaphore(0);
+    private Server server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    public void setUp() {
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        channel.shutdownNow();
+        if (server != null) {
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dropsTheOldestWhenThePeerHoldsBack() throws Exception {
+        startPeer();
+        ADEBStream stream = new ADEBStream(stub(), "peer");
+
+        for (int i = 0; i < 2000; i++) {
+            stream.send(echo(i));
+        }
+        Exchange exchange = exchanges.poll(5, TimeUnit.SECONDS);
+        assertNotNull(exchange);
+        exchange.observer.request(Integer.MAX_VALUE);
+
+        // what was held back is capped, the newest messages are kept
+        List<Integer> received = exchange.awaitQuiet();
+        assertTrue(received.size() < 2000, "received " + received.size());
+        assertTrue(received.size() >= 1024, "received " + received.size());
+        assertEquals(1999, (int) received.get(received.size() - 1));
+        assertFalse(received.contains(500));
+        for (int i = 1; i < received.size(); i++) {
+            assertTrue(received.get(i - 1) < received.get(i));
+        }
+        stream.close();
+    }
+
+    @Test
+    public void doesNotReplayWhatAFailedStreamHeld() throws Exception {
+        startPeer();
+        ADEBStream stream = new ADEBStream(stub(), "peer");
+
+        for (int i = 0; i < 10; i++) {
+            stream.send(echo(i));
+        }
+        Exchange first = exchanges.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        first.observer.onError(Status.UNAVAILABLE.asRuntimeException());
+        assertTrue(failed.tryAcquire(5, TimeUnit.SECONDS));
+
+        // once the backoff has passed, only new messages go out on the new stream
+        Thread.sleep(300);
+        stream.send(echo(100));
+        Exchange second = exchanges.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        second.observer.request(Integer.MAX_VALUE);
+        assertEquals(Collections.singletonList(100), second.awaitQuiet());
+        stream.close();
+    }
+
+    @Test
+    public void backsOffReopeningAnUnreachablePeer() throws Exception {
+        // no peer listens on the channel, so every exchange fails at once
+        ADEBStream stream = new ADEBStream(stub(), "peer");
+
+        stream.send(echo(0));
+        assertTrue(failed.tryAcquire(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 100; i++) {
+            stream.send(echo(i));
+        }
+        assertEquals(1, opened.get());
+
+        Thread.sleep(300);
+        stream.send(echo(100));
+        assertTrue(failed.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(2, opened.get());
+        // the wait has doubled
+        stream.send(echo(101));
+        assertEquals(2, opened.get());
+        stream.close();
+    }
+
+    private void startPeer() throws IOException {
+        server = InProcessServerBuilder.forName(name).directExecutor().addService(new ADEBServiceGrpc.ADEBServiceImplBase() {
+            @Override
+            public StreamObserver<ADEBMessage> exchange(StreamObserver<ADEBMessage> responseObserver) {
+                ServerCallStreamObserver<ADEBMessage> observer = (ServerCallStreamObserver<ADEBMessage>) responseObserver;
+                // messages are only taken when the test asks for them, so the sender sees a full window
+                observer.disableAutoInboundFlowControl();
+                Exchange exchange = new Exchange(observer);
+                exchanges.add(exchange);
+                return exchange;
+            }
+        }).build().start();
+    }
+
+    // Counts the exchanges opened and signals every one that fails
+    private ADEBServiceGrpc.ADEBServiceStub stub() {
+        Channel counted = ClientInterceptors.intercept(channel, new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                       CallOptions options, Channel next) {
+                opened.incrementAndGet();
+                return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, options)) {
+                    @Override
+                    public void start(Listener<RespT> listener, Metadata headers) {
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(listener) {
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                if (!status.isOk()) {
+                                    failed.release();
+                                }
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    }
+                };
+            }
+        });
+        return ADEBServiceGrpc.newStub(counted);
+    }
+
+    private static ADEBMessage echo(int nonce) {
+        return ADEBMessage.newBuilder().setEcho(EchoRequest.newBuilder().setNonce(nonce)).build();
+    }
+
+    private static class Exchange implements StreamObserver<ADEBMessage> {
+
+        final ServerCallStreamObserver<ADEBMessage> observer;
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+
+        Exchange(ServerCallStreamObserver<ADEBMessage> observer) {
+            this.observer = observer;
+        }
+
+        @Override
+        public void onNext(ADEBMessage message) {
+            received.add(message.getEcho().getNonce());
+        }
+
+        @Override
+        public void onError(Throwable throwable) { }
+
+        @Override
+        public void onCompleted() { }
+
+        // The messages received once no more arrive for a while
+        List<Integer> awaitQuiet() throws InterruptedException {
+            int size;
+            do {
+                size = received.size();
+                Thread.sleep(200);
+            } while (received.size() != size || size == 0);
+            synchronized (received) {
+                return new ArrayList<>(received);
+            }
+        }
+    }
+}
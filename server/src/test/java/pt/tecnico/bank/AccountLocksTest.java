@@ -0,0 +1,126 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccountLocksTest {
+
+    private static final int STRIPES = 2;
+
+    // two accounts on different stripes
+    private static PublicKey alice;
+    private static PublicKey bob;
+
+    @BeforeAll
+    public static void setUpKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        alice = generator.generateKeyPair().getPublic();
+        do {
+            bob = generator.generateKeyPair().getPublic();
+        } while (Math.floorMod(bob.hashCode(), STRIPES) == Math.floorMod(alice.hashCode(), STRIPES));
+    }
+
+    @Test
+    public void excludesRequestsOnTheSameAccount() throws Exception {
+        AccountLocks locks = new AccountLocks(STRIPES);
+        int[] balance = {0};
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                done.add(threads.submit(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        try (AccountLocks.Held held = locks.lock(alice)) {
+                            balance[0]++;
+                        }
+                    }
+                }));
+            }
+            for (Future<?> thread : done) {
+                thread.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertEquals(80000, balance[0]);
+    }
+
+    @Test
+    public void opposingTransfersDoNotDeadlock() throws Exception {
+        AccountLocks locks = new AccountLocks(STRIPES);
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            // one thread locks alice then bob, the other bob then alice
+            Future<?> forward = threads.submit(() -> transfer(locks, start, alice, bob));
+            Future<?> backward = threads.submit(() -> transfer(locks, start, bob, alice));
+            start.countDown();
+            forward.get(30, TimeUnit.SECONDS);
+            backward.get(30, TimeUnit.SECONDS);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void holdsBothAccountsUntilClosed() throws Exception {
+        AccountLocks locks = new AccountLocks(STRIPES);
+        AtomicBoolean acquired = new AtomicBoolean();
+
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> other;
+            try (AccountLocks.Held held = locks.lock(bob, alice)) {
+                other = thread.submit(() -> {
+                    try (AccountLocks.Held inner = locks.lock(alice)) {
+                        acquired.set(true);
+                    }
+                });
+                Thread.sleep(100);
+                assertFalse(acquired.get());
+            }
+            other.get(5, TimeUnit.SECONDS);
+            assertTrue(acquired.get());
+
+            // an account paired with itself takes its stripe once, so closing releases it
+            try (AccountLocks.Held held = locks.lock(alice, alice)) {
+                assertNotNull(held);
+            }
+            thread.submit(() -> locks.lock(alice).close()).get(5, TimeUnit.SECONDS);
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    private static void transfer(AccountLocks locks, CountDownLatch start, PublicKey from, PublicKey to) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (int i = 0; i < 100000; i++) {
+            try (AccountLocks.Held held = locks.lock(from, to)) {
+                assertNotNull(held);
+            }
+        }
+    }
+}
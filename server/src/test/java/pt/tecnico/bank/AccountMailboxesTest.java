@@ -0,0 +1,91 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccountMailboxesTest {
+
+    private static PublicKey alice;
+    private static PublicKey bob;
+
+    @BeforeAll
+    public static void setUpKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        alice = generator.generateKeyPair().getPublic();
+        bob = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void runsAnAccountsMutationsInArrivalOrder() throws Exception {
+        AccountMailboxes mailboxes = new AccountMailboxes(8);
+        List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int value = i;
+            results.add(mailboxes.submit(alice, () -> {
+                applied.add(value);
+                return value;
+            }));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, results.get(i).get(5, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, applied.get(i));
+        }
+    }
+
+    @Test
+    public void otherAccountsDoNotWait() throws Exception {
+        AccountMailboxes mailboxes = new AccountMailboxes(2);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Boolean> blocked = mailboxes.submit(alice, () -> {
+            try {
+                return release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        });
+        CompletableFuture<Integer> queued = mailboxes.submit(alice, () -> 1);
+
+        // bob's mutation runs while alice's mailbox is stuck
+        assertEquals(2, mailboxes.submit(bob, () -> 2).get(5, TimeUnit.SECONDS));
+        assertFalse(queued.isDone());
+
+        release.countDown();
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        assertEquals(1, queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void aFailedMutationFailsOnlyItsOwnResult() throws Exception {
+        AccountMailboxes mailboxes = new AccountMailboxes(2);
+
+        CompletableFuture<Integer> failed = mailboxes.submit(alice, () -> {
+            throw new IOException("disk full");
+        });
+        CompletableFuture<Integer> next = mailboxes.submit(alice, () -> 3);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(3, next.get(5, TimeUnit.SECONDS));
+    }
+}
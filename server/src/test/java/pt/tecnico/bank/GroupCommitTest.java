@@ -0,0 +1,90 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GroupCommitTest {
+
+    @Test
+    public void batchesConcurrentAppends() throws Exception {
+        List<Integer> batches = new ArrayList<>();
+        CountDownLatch firstWrite = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommit commit = new GroupCommit(1, records -> {
+            synchronized (batches) {
+                batches.add(records.size());
+            }
+            firstWrite.countDown();
+            await(release);
+        });
+        commit.start();
+
+        ExecutorService callers = Executors.newFixedThreadPool(9);
+        try {
+            List<Future<?>> appends = new ArrayList<>();
+            appends.add(callers.submit(() -> append(commit)));
+            assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+            // these queue up behind the write in progress and go out together
+            for (int i = 0; i < 8; i++) {
+                appends.add(callers.submit(() -> append(commit)));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<?> append : appends) {
+                append.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        synchronized (batches) {
+            assertEquals(List.of(1, 8), batches);
+        }
+    }
+
+    @Test
+    public void failingWriterFailsItsCallersAndKeepsGoing() throws Exception {
+        boolean[] fail = {true};
+        GroupCommit commit = new GroupCommit(0, records -> {
+            if (fail[0]) {
+                throw new IllegalStateException("buffer full");
+            }
+        });
+        commit.start();
+
+        IOException e = assertThrows(IOException.class, () -> commit.append(new byte[]{1}));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+
+        // the committer survived and serves the next batch
+        fail[0] = false;
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            caller.submit(() -> append(commit)).get(5, TimeUnit.SECONDS);
+        } finally {
+            caller.shutdownNow();
+        }
+    }
+
+    private static Void append(GroupCommit commit) throws IOException {
+        commit.append(new byte[]{1});
+        return null;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
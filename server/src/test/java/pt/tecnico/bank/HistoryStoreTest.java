@@ -0,0 +1,177 @@
+package pt.tecnico.bank;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.grpc.Transaction;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryStoreTest {
+
+    private static PublicKey account;
+
+    private String serverName;
+    private Client client;
+    private HistoryStore store;
+
+    @BeforeAll
+    public static void setUpKey() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        account = generator.generateKeyPair().getPublic();
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Path target = Paths.get(System.getProperty("user.dir"), "target");
+        Files.createDirectories(target);
+        serverName = "target/" + Files.createTempDirectory(target, "history-test").getFileName();
+        client = new Client("alice", new byte[0]);
+        store = new HistoryStore(serverName);
+        store.open(Collections.singletonMap(account, client));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(Paths.get(System.getProperty("user.dir"), serverName))) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendThenRead() throws IOException {
+        appendAll(0, 300);
+        store.sync();
+
+        assertEquals(1, client.getHistoryGeneration());
+        assertEquals(300, client.getHistorySize());
+        assertEquals(amounts(0, 300), read(store, 0, 1000));
+    }
+
+    @Test
+    public void pagesStartAnywhere() throws IOException {
+        appendAll(0, 300);
+
+        // inside the first indexed stretch, across an index boundary, and on one
+        assertEquals(amounts(5, 15), read(store, 5, 10));
+        assertEquals(amounts(120, 140), read(store, 120, 20));
+        assertEquals(amounts(256, 300), read(store, 256, 100));
+        assertEquals(Collections.emptyList(), read(store, 300, 10));
+
+        // a fresh store builds the sparse index from the segment itself
+        HistoryStore reopened = new HistoryStore(serverName);
+        assertEquals(amounts(200, 260), read(reopened, 200, 60));
+        assertEquals(amounts(0, 3), read(reopened, 0, 3));
+    }
+
+    @Test
+    public void replaceStartsNewGeneration() throws IOException {
+        appendAll(0, 10);
+
+        List<Transaction> history = new ArrayList<>();
+        for (int i = 100; i < 400; i++) {
+            history.add(transaction(i));
+        }
+        store.replace(account, client, history);
+
+        assertEquals(2, client.getHistoryGeneration());
+        assertEquals(300, client.getHistorySize());
+        assertEquals(amounts(100, 400), read(store, 0, 1000));
+        assertEquals(amounts(330, 340), read(store, 230, 10));
+
+        appendAll(400, 401);
+        assertEquals(amounts(399, 401), read(store, 299, 10));
+    }
+
+    @Test
+    public void viewKeepsItsHistory() throws IOException {
+        appendAll(0, 200);
+        HistoryStore.View view = store.view(client);
+        assertEquals(200, view.getSize());
+
+        appendAll(200, 300);
+        assertEquals(amounts(190, 200), read(store, view, 190, 50));
+
+        List<Transaction> history = new ArrayList<>();
+        for (int i = 1000; i < 1300; i++) {
+            history.add(transaction(i));
+        }
+        store.replace(account, client, history);
+
+        assertEquals(amounts(0, 200), read(store, view, 0, 1000));
+        assertEquals(amounts(150, 160), read(store, view, 150, 10));
+        assertEquals(amounts(1150, 1160), read(store, store.view(client), 150, 10));
+    }
+
+    @Test
+    public void openDropsUncommittedTail() throws IOException {
+        appendAll(0, 3);
+        int generation = client.getHistoryGeneration();
+        int size = client.getHistorySize();
+        long bytes = client.getHistoryBytes();
+
+        // written, but its log record never committed
+        appendAll(3, 4);
+        store.sync();
+        client.setHistorySegment(generation, size, bytes);
+
+        HistoryStore reopened = new HistoryStore(serverName);
+        reopened.open(Collections.singletonMap(account, client));
+        assertEquals(amounts(0, 3), read(reopened, 0, 10));
+
+        appendAll(3, 5);
+        assertEquals(amounts(0, 5), read(store, 0, 10));
+    }
+
+    private void appendAll(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            store.append(account, client, transaction(i));
+        }
+    }
+
+    private List<Integer> read(HistoryStore from, int start, int limit) throws IOException {
+        List<Integer> amounts = new ArrayList<>();
+        from.read(account, client, start, limit, transaction -> amounts.add(transaction.getAmount()));
+        return amounts;
+    }
+
+    private List<Integer> read(HistoryStore from, HistoryStore.View view, int start, int limit) throws IOException {
+        List<Integer> amounts = new ArrayList<>();
+        from.read(account, client, view, start, limit, transaction -> amounts.add(transaction.getAmount()));
+        return amounts;
+    }
+
+    private static List<Integer> amounts(int from, int to) {
+        List<Integer> amounts = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            amounts.add(i);
+        }
+        return amounts;
+    }
+
+    private static Transaction transaction(int amount) {
+        return Transaction.newBuilder()
+                .setSourceUsername("alice")
+                .setDestUsername("bob")
+                .setAmount(amount)
+                .setSource(ByteString.copyFrom(account.getEncoded()))
+                .setWid(amount)
+                .setSignature(ByteString.copyFrom(new byte[]{(byte) amount}))
+                .build();
+    }
+}
@@ -0,0 +1,80 @@
+package pt.tecnico.bank;
+
+import io.grpc.ServerCall;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadMonitorTest {
+
+    private static PublicKey alice;
+    private static PublicKey bob;
+
+    @BeforeAll
+    public static void setUpKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        alice = generator.generateKeyPair().getPublic();
+        bob = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void clientsOverTheAllowancePayMore() {
+        LoadMonitor monitor = new LoadMonitor(8, 30, 5, 1000, () -> 0.5);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(8, monitor.challengeDifficulty(alice));
+        }
+        // up to twice the allowance costs two more bits, up to four times four more
+        for (int i = 5; i < 10; i++) {
+            assertEquals(10, monitor.challengeDifficulty(alice));
+        }
+        for (int i = 10; i < 20; i++) {
+            assertEquals(12, monitor.challengeDifficulty(alice));
+        }
+        assertEquals(14, monitor.challengeDifficulty(alice));
+
+        // other clients keep their own rate
+        assertEquals(8, monitor.challengeDifficulty(bob));
+    }
+
+    @Test
+    public void saturationRaisesEveryone() {
+        LoadMonitor monitor = new LoadMonitor(8, 30, 5, 1, () -> 0.5);
+
+        ServerCall.Listener<Object> call = monitor.interceptCall(null, null, (serverCall, headers) -> new ServerCall.Listener<Object>() { });
+        assertEquals(1, monitor.load(), 1e-9);
+        assertEquals(12, monitor.challengeDifficulty(alice));
+
+        // a cancelled call counts once, however it ends
+        call.onCancel();
+        call.onComplete();
+        assertEquals(0.5, monitor.load(), 1e-9);
+        assertEquals(8, monitor.challengeDifficulty(bob));
+    }
+
+    @Test
+    public void aBusyCpuSaturatesToo() {
+        LoadMonitor monitor = new LoadMonitor(8, 30, 1, 1000, () -> 1.5);
+
+        assertEquals(12, monitor.challengeDifficulty(alice));
+        // over the allowance while saturated, the client's extra bits count twice
+        assertEquals(16, monitor.challengeDifficulty(alice));
+    }
+
+    @Test
+    public void neverAsksMoreThanTheMaximum() {
+        LoadMonitor monitor = new LoadMonitor(8, 12, 1, 1000, () -> 0.5);
+
+        int difficulty = 0;
+        for (int i = 0; i < 100; i++) {
+            difficulty = monitor.challengeDifficulty(alice);
+        }
+        assertEquals(12, difficulty);
+    }
+}
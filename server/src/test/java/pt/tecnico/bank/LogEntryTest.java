@@ -0,0 +1,155 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.domain.Transactions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogEntryTest {
+
+    private static KeyPair alice;
+    private static KeyPair bob;
+
+    private Path file;
+
+    @BeforeAll
+    public static void setUpKeys() throws NoSuchAlgorithmException {
+        ServerMain.crypto = new Crypto();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        alice = generator.generateKeyPair();
+        bob = generator.generateKeyPair();
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = Files.createTempFile("db", ".log");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void replayRebuildsClients() throws IOException {
+        Transactions transaction = new Transactions("alice", "bob", 20, alice.getPublic(), bob.getPublic(), 1, new byte[]{1, 2, 3});
+        List<byte[]> records = Arrays.asList(
+                new LogEntry().openAccount(alice.getPublic(), "alice", new byte[]{9}).toByteArray(),
+                new LogEntry().openAccount(bob.getPublic(), "bob", new byte[]{8}).toByteArray(),
+                new LogEntry().setState(alice.getPublic(), 480, 1, new byte[]{7})
+                        .addPending(bob.getPublic(), transaction).toByteArray(),
+                new LogEntry().addEvent(bob.getPublic(), 42, 3)
+                        .setHistorySegment(alice.getPublic(), 1, 1, 123).toByteArray());
+        write(LogEntry.frame(records));
+
+        List<byte[]> replayed = LogEntry.readFile(file);
+        assertEquals(records.size(), replayed.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertArrayEquals(records.get(i), replayed.get(i));
+        }
+
+        Map<PublicKey, Client> clients = new HashMap<>();
+        for (byte[] record : replayed) {
+            LogEntry.apply(record, clients);
+        }
+
+        Client a = clients.get(alice.getPublic());
+        assertEquals("alice", a.getUsername());
+        assertEquals(480, a.getBalance());
+        assertEquals(1, a.getWid());
+        assertArrayEquals(new byte[]{7}, a.getPair_signature());
+        assertEquals(1, a.getHistoryGeneration());
+        assertEquals(1, a.getHistorySize());
+        assertEquals(123, a.getHistoryBytes());
+
+        Client b = clients.get(bob.getPublic());
+        assertEquals(500, b.getBalance());
+        assertEquals(1, b.getPending().size());
+        assertEquals(20, b.getPending().get(0).getValue());
+        assertEquals(alice.getPublic(), b.getPending().get(0).getSourceKey());
+        assertTrue(b.getEventList().contains(42));
+        assertEquals(3, b.getRid());
+    }
+
+    @Test
+    public void missingFileHasNoRecords() throws IOException {
+        Files.delete(file);
+        assertTrue(LogEntry.readFile(file).isEmpty());
+    }
+
+    @Test
+    public void replayStopsAtBadChecksum() throws IOException {
+        List<byte[]> records = Arrays.asList(
+                new LogEntry().addEvent(alice.getPublic(), 1, 1).toByteArray(),
+                new LogEntry().addEvent(alice.getPublic(), 2, 2).toByteArray(),
+                new LogEntry().addEvent(alice.getPublic(), 3, 3).toByteArray());
+        ByteBuffer framed = LogEntry.frame(records);
+
+        // flip the last byte of the second record's body
+        int second = LogEntry.RECORD_HEADER + records.get(0).length;
+        int last = second + LogEntry.RECORD_HEADER + records.get(1).length - 1;
+        framed.put(last, (byte) (framed.get(last) ^ 0xFF));
+        write(framed);
+
+        List<byte[]> replayed = LogEntry.readFile(file);
+        assertEquals(1, replayed.size());
+        assertArrayEquals(records.get(0), replayed.get(0));
+    }
+
+    @Test
+    public void replayStopsAtTruncatedRecord() throws IOException {
+        List<byte[]> records = Arrays.asList(
+                new LogEntry().addEvent(alice.getPublic(), 1, 1).toByteArray(),
+                new LogEntry().addEvent(alice.getPublic(), 2, 2).toByteArray());
+        ByteBuffer framed = LogEntry.frame(records);
+        framed.limit(framed.limit() - 5);
+        write(framed);
+
+        assertEquals(1, LogEntry.readFile(file).size());
+
+        // a length that points past the end of the file
+        write(ByteBuffer.allocate(LogEntry.RECORD_HEADER).putInt(1000).putLong(0).flip());
+        assertTrue(LogEntry.readFile(file).isEmpty());
+    }
+
+    @Test
+    public void replayStopsAtTornFrame() throws IOException {
+        byte[] committed = new LogEntry().addEvent(alice.getPublic(), 1, 1).toByteArray();
+        byte[] torn = new LogEntry().addEvent(alice.getPublic(), 2, 2).toByteArray();
+        byte[] later = new LogEntry().addEvent(alice.getPublic(), 3, 3).toByteArray();
+
+        // a batch whose write failed halfway, with another batch appended behind it
+        ByteBuffer tornFrame = LogEntry.frame(Collections.singletonList(torn));
+        tornFrame.limit(LogEntry.RECORD_HEADER + 3);
+        ByteBuffer log = ByteBuffer.allocate(1024)
+                .put(LogEntry.frame(Collections.singletonList(committed)))
+                .put(tornFrame)
+                .put(LogEntry.frame(Collections.singletonList(later)));
+        write(log.flip());
+
+        List<byte[]> replayed = LogEntry.readFile(file);
+        assertEquals(1, replayed.size());
+        assertArrayEquals(committed, replayed.get(0));
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        Files.write(file, bytes);
+    }
+}
@@ -0,0 +1,56 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicaKeysTest {
+
+    @Test
+    public void acceptsOnlyKnownReplicaNames() {
+        ReplicaKeys replicas = new ReplicaKeys(4, name -> null);
+
+        assertTrue(replicas.isReplica("server_8080"));
+        assertTrue(replicas.isReplica("server_8083"));
+        assertFalse(replicas.isReplica("server_8084"));
+        assertFalse(replicas.isReplica("server_8079"));
+        assertFalse(replicas.isReplica("server_08081"));
+        assertFalse(replicas.isReplica("server_+8081"));
+        assertFalse(replicas.isReplica("client_8081"));
+        assertFalse(replicas.isReplica(null));
+    }
+
+    @Test
+    public void admitsOnlyTheConfiguredKey() throws NoSuchAlgorithmException {
+        PublicKey first = key();
+        PublicKey second = key();
+        Map<String, PublicKey> configured = new HashMap<>();
+        configured.put("server_8081", first);
+        configured.put("server_8082", second);
+        ReplicaKeys replicas = new ReplicaKeys(4, configured::get);
+
+        assertTrue(replicas.admit("server_8081", first));
+        assertTrue(replicas.admit("server_8082", second));
+        // another replica's key, even one seen first, does not make its signer that replica
+        assertFalse(replicas.admit("server_8083", first));
+        assertFalse(replicas.admit("server_8081", second));
+        assertFalse(replicas.admit("server_9000", first));
+
+        // a replica whose key shows up later is admitted from then on
+        configured.put("server_8083", second);
+        assertFalse(replicas.admit("server_8083", first));
+        assertTrue(replicas.admit("server_8083", second));
+    }
+
+    private static PublicKey key() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return generator.generateKeyPair().getPublic();
+    }
+}
@@ -0,0 +1,94 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.bank.domain.Client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SaveHandlerTest {
+
+    private static PublicKey alice;
+
+    private String serverName;
+
+    @BeforeAll
+    public static void setUpKey() throws NoSuchAlgorithmException {
+        ServerMain.crypto = new Crypto();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        alice = generator.generateKeyPair().getPublic();
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Path target = Paths.get(System.getProperty("user.dir"), "target");
+        Files.createDirectories(target);
+        serverName = "target/" + Files.createTempDirectory(target, "save-test").getFileName();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(Paths.get(System.getProperty("user.dir"), serverName))) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendedEntriesSurviveARestart() throws Exception {
+        SaveHandler handler = start();
+        handler.append(new LogEntry().openAccount(alice, "alice", new byte[]{9}));
+        handler.append(new LogEntry().setState(alice, 480, 1, new byte[]{7}));
+
+        // nothing was checkpointed, so this comes from the log alone
+        HashMap<PublicKey, Client> restored = new SaveHandler(serverName, 1, 0).loadState();
+        Client client = restored.get(alice);
+        assertNotNull(client);
+        assertEquals("alice", client.getUsername());
+        assertEquals(480, client.getBalance());
+        assertEquals(1, client.getWid());
+    }
+
+    @Test
+    public void checkpointFoldsTheLogIntoTheSnapshot() throws Exception {
+        SaveHandler handler = start();
+        handler.append(new LogEntry().openAccount(alice, "alice", new byte[]{9}));
+        handler.append(new LogEntry().setState(alice, 480, 1, new byte[]{7}));
+
+        handler.checkpoint();
+        Path dir = Paths.get(System.getProperty("user.dir"), serverName);
+        assertEquals(0, Files.size(dir.resolve("db.log")));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.noneMatch(path -> path.getFileName().toString().matches("db\\.\\d+\\.log")));
+        }
+
+        // what came after the checkpoint is replayed on top of it
+        handler.append(new LogEntry().setState(alice, 460, 2, new byte[]{6}));
+        Client client = new SaveHandler(serverName, 1, 0).loadState().get(alice);
+        assertEquals(460, client.getBalance());
+        assertEquals(2, client.getWid());
+    }
+
+    private SaveHandler start() throws IOException, ClassNotFoundException {
+        SaveHandler handler = new SaveHandler(serverName, 1, 0);
+        ServerMain.clientList = new ConcurrentHashMap<>(handler.loadState());
+        ServerMain.historyStore = new HistoryStore(serverName);
+        ServerMain.historyStore.open(ServerMain.clientList);
+        handler.open();
+        return handler;
+    }
+}
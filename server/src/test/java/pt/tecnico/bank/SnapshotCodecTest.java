@@ -0,0 +1,137 @@
+package pt.tecnico.bank;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.bank.SnapshotCodec.Snapshot;
+import pt.tecnico.bank.domain.Client;
+import pt.tecnico.bank.domain.Transactions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotCodecTest {
+
+    private static KeyPair alice;
+    private static KeyPair bob;
+
+    @BeforeAll
+    public static void setUpKeys() throws NoSuchAlgorithmException {
+        ServerMain.crypto = new Crypto();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        alice = generator.generateKeyPair();
+        bob = generator.generateKeyPair();
+    }
+
+    @Test
+    public void encodeDecodeRoundTrip() throws IOException, ClassNotFoundException {
+        HashMap<PublicKey, Client> clients = clients();
+        Client a = clients.get(alice.getPublic());
+        a.setRid(4);
+        a.addEvent(11);
+        a.addEvent(12);
+        a.setChallenge(new byte[]{5, 5});
+        a.setHistorySegment(2, 7, 900);
+
+        Snapshot snapshot = SnapshotCodec.decode(SnapshotCodec.encode(clients, 17));
+
+        assertEquals(17, snapshot.segment);
+        assertEquals(2, snapshot.clients.size());
+
+        Client decoded = snapshot.clients.get(alice.getPublic());
+        assertEquals("alice", decoded.getUsername());
+        assertEquals(460, decoded.getBalance());
+        assertEquals(3, decoded.getWid());
+        assertEquals(4, decoded.getRid());
+        assertArrayEquals(new byte[]{9}, decoded.getPair_signature());
+        assertEquals(new HashSet<>(Arrays.asList(11, 12)), decoded.getEventList());
+        assertArrayEquals(new byte[]{5, 5}, decoded.getChallenge());
+        assertEquals(2, decoded.getHistoryGeneration());
+        assertEquals(7, decoded.getHistorySize());
+        assertEquals(900, decoded.getHistoryBytes());
+        assertNull(decoded.getHistory());
+
+        Client decodedBob = snapshot.clients.get(bob.getPublic());
+        assertEquals(1, decodedBob.getPending().size());
+        Transactions pending = decodedBob.getPending().get(0);
+        assertEquals("alice", pending.getSenderUsername());
+        assertEquals(40, pending.getValue());
+        assertEquals(alice.getPublic(), pending.getSourceKey());
+        assertEquals(bob.getPublic(), pending.getDestKey());
+        assertArrayEquals(new byte[]{1, 2}, pending.getSignature());
+    }
+
+    @Test
+    public void inlineHistoriesSurvive() throws IOException, ClassNotFoundException {
+        HashMap<PublicKey, Client> clients = clients();
+        clients.get(bob.getPublic()).addHistory(transaction(30));
+
+        Snapshot snapshot = SnapshotCodec.decode(SnapshotCodec.encode(clients, 0));
+
+        List<Transactions> history = snapshot.clients.get(bob.getPublic()).getHistory();
+        assertEquals(1, history.size());
+        assertEquals(30, history.get(0).getValue());
+    }
+
+    @Test
+    public void emptyFileIsEmptySnapshot() throws IOException, ClassNotFoundException {
+        Snapshot snapshot = SnapshotCodec.decode(new byte[0]);
+        assertEquals(0, snapshot.segment);
+        assertTrue(snapshot.clients.isEmpty());
+    }
+
+    @Test
+    public void readsJavaSerializedSnapshots() throws IOException, ClassNotFoundException {
+        HashMap<PublicKey, Client> clients = clients();
+
+        // before log segments: the map alone
+        Snapshot oldest = SnapshotCodec.decode(serialize(clients));
+        assertEquals(0, oldest.segment);
+        assertEquals(460, oldest.clients.get(alice.getPublic()).getBalance());
+
+        // with log segments: the segment number, then the map
+        Snapshot segmented = SnapshotCodec.decode(serialize(5L, clients));
+        assertEquals(5, segmented.segment);
+        assertEquals(1, segmented.clients.get(bob.getPublic()).getPending().size());
+    }
+
+    @Test
+    public void rejectsUnknownContent() {
+        assertThrows(IOException.class, () -> SnapshotCodec.decode("not a snapshot".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static HashMap<PublicKey, Client> clients() {
+        HashMap<PublicKey, Client> clients = new HashMap<>();
+        Client a = new Client("alice", new byte[]{9});
+        a.setBalance(460);
+        a.setWid(3);
+        clients.put(alice.getPublic(), a);
+        Client b = new Client("bob", new byte[]{8});
+        b.addPending(transaction(40));
+        clients.put(bob.getPublic(), b);
+        return clients;
+    }
+
+    private static Transactions transaction(int value) {
+        return new Transactions("alice", "bob", value, alice.getPublic(), bob.getPublic(), 1, new byte[]{1, 2});
+    }
+
+    private static byte[] serialize(Object... objects) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            for (Object object : objects) {
+                out.writeObject(object);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,75 @@
+package pt.tecnico.bank.domain;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClientTest {
+
+    private static final long NOW = 1000;
+
+    private Client client;
+
+    @BeforeEach
+    public void setUp() {
+        client = new Client("alice", new byte[0]);
+    }
+
+    @Test
+    public void noLeaseNoUses() {
+        assertFalse(client.useChallenge(0, NOW));
+    }
+
+    @Test
+    public void everyCounterOnce() {
+        client.setChallengeLease(16, NOW + 100);
+
+        for (int counter = 15; counter >= 0; counter--) {
+            assertTrue(client.useChallenge(counter, NOW));
+        }
+        for (int counter = 0; counter < 16; counter++) {
+            assertFalse(client.useChallenge(counter, NOW));
+        }
+    }
+
+    @Test
+    public void countersOutsideTheLease() {
+        client.setChallengeLease(16, NOW + 100);
+
+        assertFalse(client.useChallenge(-1, NOW));
+        assertFalse(client.useChallenge(16, NOW));
+        assertFalse(client.useChallenge(64, NOW));
+        assertFalse(client.useChallenge(Integer.MAX_VALUE, NOW));
+        assertTrue(client.useChallenge(0, NOW));
+    }
+
+    @Test
+    public void fullLease() {
+        client.setChallengeLease(64, NOW + 100);
+
+        assertTrue(client.useChallenge(63, NOW));
+        assertFalse(client.useChallenge(63, NOW));
+        assertTrue(client.useChallenge(31, NOW));
+        assertTrue(client.useChallenge(32, NOW));
+        assertFalse(client.useChallenge(64, NOW));
+    }
+
+    @Test
+    public void expiredLease() {
+        client.setChallengeLease(16, NOW + 100);
+
+        assertTrue(client.useChallenge(0, NOW + 99));
+        assertFalse(client.useChallenge(1, NOW + 100));
+        assertFalse(client.useChallenge(2, NOW + 1000));
+    }
+
+    @Test
+    public void newLeaseResetsCounters() {
+        client.setChallengeLease(4, NOW + 100);
+        assertTrue(client.useChallenge(0, NOW));
+
+        client.setChallengeLease(4, NOW + 200);
+        assertTrue(client.useChallenge(0, NOW + 150));
+    }
+}